@@ -0,0 +1,84 @@
+package com.gemma3n.smartlearning;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bulk write benchmark of the lesson vector store: the same chunks inserted a row per transaction
+ * and with insertAll at several batch sizes. Runs on a throwaway database file, so commits still
+ * sync to disk as in the app. Timings are logged under the LessonVectorStoreBenchmark tag, wall
+ * clock times on a shared device are too noisy to assert on.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LessonVectorStoreBenchmark {
+    private static final String TAG = "LessonVectorStoreBenchmark";
+    private static final String DATABASE_NAME = "lesson_index_benchmark.db";
+    private static final int ROWS = 1000;
+    // Size of a Gecko embedding
+    private static final int DIMENSIONS = 768;
+    private static final String LESSON = "benchmark/lesson.txt";
+
+    private Context context;
+    private LessonVectorStore vectorStore;
+    private List<Float> embedding;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        vectorStore = new LessonVectorStore(context, DATABASE_NAME);
+        Random random = new Random(42);
+        embedding = new ArrayList<>();
+        for (int i = 0; i < DIMENSIONS; i++) {
+            embedding.add(random.nextFloat() - 0.5f);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        vectorStore.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void singleInserts() {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROWS; i++) {
+            vectorStore.insert(LESSON, "hash" + i, "Chunk " + i, i * 100, i * 100 + 100, embedding);
+        }
+        long nanos = System.nanoTime() - start;
+        Log.i(TAG, ROWS + " rows, single inserts: " + nanos / 1_000_000 + " ms");
+        assertEquals(ROWS, vectorStore.getChunkRows(LESSON).size());
+    }
+
+    @Test
+    public void insertAllByBatchSize() {
+        for (int batchSize : new int[]{1, 16, LessonVectorStore.DEFAULT_INSERT_BATCH_SIZE, ROWS}) {
+            vectorStore.setInsertBatchSize(batchSize);
+            List<LessonVectorStore.Row> rows = new ArrayList<>();
+            for (int i = 0; i < ROWS; i++) {
+                rows.add(new LessonVectorStore.Row(LESSON, "hash" + i, "Chunk " + i, i * 100, i * 100 + 100, embedding));
+            }
+            long start = System.nanoTime();
+            vectorStore.insertAll(rows);
+            long nanos = System.nanoTime() - start;
+            Log.i(TAG, ROWS + " rows, insertAll with batch size " + batchSize + ": " + nanos / 1_000_000 + " ms");
+            assertEquals(ROWS, vectorStore.getChunkRows(LESSON).size());
+            vectorStore.removeLesson(LESSON);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.gemma3n.smartlearning;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Subject specific LoRA adapters for the base model, one converted adapter file per subject
+ * named after it in ADAPTER_DIR (e.g. biology.bin, world_history.bin). A lesson gets the adapter
+ * whose subject appears in its file name or in its first line, the longest match wins.
+ */
+public class AdapterRegistry {
+    private static final String TAG = "AdapterRegistry";
+    public static final String ADAPTER_DIR = "/data/local/tmp/llm/adapters";
+    // MediaPipe only applies adapters converted to its flatbuffer format
+    private static final String ADAPTER_EXTENSION = ".bin";
+
+    private final File directory;
+    // Subject in lower case with spaces, to adapter path
+    private Map<String, String> adapters;
+
+    public AdapterRegistry(String directory) {
+        this.directory = new File(directory);
+    }
+
+    public static boolean isSupported(String adapterPath) {
+        return adapterPath != null && adapterPath.endsWith(ADAPTER_EXTENSION) && new File(adapterPath).isFile();
+    }
+
+    public synchronized Map<String, String> getAdapters() {
+        if (adapters == null) {
+            adapters = scan();
+        }
+        return Collections.unmodifiableMap(adapters);
+    }
+
+    // Picks up adapters added to the directory since the last scan
+    public synchronized void refresh() {
+        adapters = null;
+    }
+
+    // Adapter for the lesson, fallbackPath when no subject matches, or null to use the base model alone
+    public String adapterFor(String lessonFilePath, String lessonContent, String fallbackPath) {
+        String lessonWords = " " + TextWords.of(lessonFilePath != null ? new File(lessonFilePath).getName() : "") +
+                " " + TextWords.of(firstLine(lessonContent)) + " ";
+        Map<String, String> available = getAdapters();
+        String bestSubject = null;
+        for (String subject : available.keySet()) {
+            if (lessonWords.contains(" " + subject + " ") && (bestSubject == null || subject.length() > bestSubject.length())) {
+                bestSubject = subject;
+            }
+        }
+        if (bestSubject != null) {
+            Log.d(TAG, "Using the " + bestSubject + " adapter.");
+            return available.get(bestSubject);
+        }
+        if (fallbackPath != null && !isSupported(fallbackPath)) {
+            Log.w(TAG, "Ignoring adapter " + fallbackPath + ", it is missing or not in " + ADAPTER_EXTENSION + " format.");
+            return null;
+        }
+        return fallbackPath;
+    }
+
+    private Map<String, String> scan() {
+        Map<String, String> found = new HashMap<>();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(ADAPTER_EXTENSION));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                found.put(TextWords.of(name.substring(0, name.length() - ADAPTER_EXTENSION.length())), file.getAbsolutePath());
+            }
+        }
+        Log.d(TAG, "Found " + found.size() + " adapters in " + directory);
+        return found;
+    }
+
+    private static String firstLine(String text) {
+        if (text == null) return "";
+        String trimmed = text.trim();
+        int end = trimmed.indexOf('\n');
+        return end >= 0 ? trimmed.substring(0, end) : trimmed;
+    }
+}
@@ -0,0 +1,102 @@
+package com.gemma3n.smartlearning;
+
+import android.util.Log;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Grades the clear failures of quiz answers without the LLM: blank answers, the question repeated
+ * back, text copied from the lesson and answers about something else entirely. The answer is
+ * embedded with Gecko and compared with the question, the reference answer and the lesson chunks
+ * retrieved for the question. Similarity can't tell a right answer from a wrong one about the same
+ * thing ("the heart pumps blood" against "the lungs pump blood"), so every other answer, however
+ * close to the reference, is left to the model. Embedding takes milliseconds where grading with
+ * the model takes seconds.
+ */
+public class AnswerPreGrader {
+    private static final String TAG = "AnswerPreGrader";
+    private static final int RETRIEVED_CHUNKS = 3;
+    // Answers further than this from the question, the reference and the lesson are about something else
+    private static final float OFF_TOPIC_THRESHOLD = 0.4f;
+    // Shorter passages found in the lesson are just common phrases
+    private static final int COPIED_MIN_WORDS = 8;
+    private static final Set<String> NON_ANSWERS = new HashSet<>(Arrays.asList(
+            "idk", "i dont know", "i do not know", "dont know", "no idea", "not sure", "none", "nothing", "pass", "skip"));
+
+    private final LessonIndex lessonIndex;
+
+    public AnswerPreGrader(LessonIndex lessonIndex) {
+        this.lessonIndex = lessonIndex;
+    }
+
+    // Feedback for a clear case, or null when the model should grade the answer. lessonFilePath can be null
+    // for a lesson that isn't indexed. Blocks, call it off the main thread.
+    public String preGrade(String question, String referenceAnswer, String userAnswer, String lessonFilePath) {
+        String answerWords = TextWords.of(userAnswer);
+        String reference = referenceAnswer != null && !referenceAnswer.trim().isEmpty() ? referenceAnswer.trim() : null;
+        if (answerWords.isEmpty() || NON_ANSWERS.contains(answerWords)) {
+            return withReference("No answer was given.", reference);
+        }
+        if (isRepeatedQuestion(answerWords, TextWords.of(question))) {
+            return withReference("This repeats the question instead of answering it.", reference);
+        }
+        try {
+            List<String> chunks = lessonFilePath != null
+                    ? lessonIndex.retrieveChunks(question, lessonFilePath, RETRIEVED_CHUNKS)
+                    : new ArrayList<>();
+            if (isCopied(answerWords, chunks)) {
+                return withReference("This is copied word for word from the lesson. Try to explain it in your own words.",
+                        reference);
+            }
+            ImmutableList<Float> answerEmbedding = lessonIndex.embedQuery(userAnswer);
+            List<String> documents = new ArrayList<>(chunks);
+            documents.add(question);
+            if (reference != null) {
+                documents.add(reference);
+            }
+            List<ImmutableList<Float>> embeddings = lessonIndex.embedDocuments(documents);
+
+            float bestChunk = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                bestChunk = Math.max(bestChunk, VectorMath.cosineSimilarity(answerEmbedding, embeddings.get(i)));
+            }
+            float toQuestion = VectorMath.cosineSimilarity(answerEmbedding, embeddings.get(chunks.size()));
+            float toReference = reference != null ? VectorMath.cosineSimilarity(answerEmbedding, embeddings.get(chunks.size() + 1)) : 0;
+            float best = Math.max(bestChunk, Math.max(toQuestion, toReference));
+            Log.d(TAG, String.format(Locale.US, "Answer similarity: reference %.2f, question %.2f, lesson %.2f",
+                    toReference, toQuestion, bestChunk));
+
+            if (best < OFF_TOPIC_THRESHOLD) {
+                return withReference("This answer is not about the question.", reference);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error pre-grading the answer, leaving it to the model: " + e.getMessage(), e);
+        }
+        return null;
+    }
+
+    // A single word of the question can be the answer to it ("sun or moon?"), a longer part of it is not
+    private static boolean isRepeatedQuestion(String answerWords, String questionWords) {
+        return answerWords.equals(questionWords) ||
+                (answerWords.split(" ").length >= 3 && (" " + questionWords + " ").contains(" " + answerWords + " "));
+    }
+
+    private static boolean isCopied(String answerWords, List<String> chunks) {
+        if (answerWords.split(" ").length < COPIED_MIN_WORDS) return false;
+        for (String chunk : chunks) {
+            if (TextWords.of(chunk).contains(answerWords)) return true;
+        }
+        return false;
+    }
+
+    private static String withReference(String feedback, String reference) {
+        return reference != null ? feedback + " Expected answer: " + reference : feedback;
+    }
+}
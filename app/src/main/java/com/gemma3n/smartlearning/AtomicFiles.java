@@ -0,0 +1,44 @@
+package com.gemma3n.smartlearning;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+// Writes a file through a temporary file next to it that is then renamed over it, so a crash or a failed
+// write never leaves a half written lesson, cache entry or reformat section behind. Callers are off the main thread.
+public final class AtomicFiles {
+
+    public interface Body<T> {
+        T writeTo(Writer out) throws IOException;
+    }
+
+    private AtomicFiles() {}
+
+    public static void write(File file, String text) throws IOException {
+        write(file, out -> {
+            out.write(text);
+            return null;
+        });
+    }
+
+    // Streams body into file as UTF-8 and returns what body returned
+    public static <T> T write(File file, Body<T> body) throws IOException {
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        T result;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+            result = body.writeTo(out);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to rename " + tempFile.getName());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,178 @@
+package com.gemma3n.smartlearning;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.mediapipe.tasks.genai.llminference.LlmInference;
+import com.google.mediapipe.tasks.genai.llminference.LlmInferenceSession;
+
+/**
+ * Picks the fastest backend (GPU or CPU) for a model file on this device.
+ * The first load of a model runs a calibration prompt of typical length on each backend, the winner is
+ * stored in shared preferences and used directly on later launches. A backend that fails to
+ * load is skipped, so a broken GPU delegate falls back to CPU. The winner's measured speeds are
+ * stored with it, ModelRouter uses them to estimate how long a task takes on the model.
+ */
+public class BackendSelector {
+    private static final String TAG = "BackendSelector";
+    private static final String PREFS_NAME = "llm_backend";
+    // Repeated up to the length of a typical prompt. A prompt of a few tokens measures mostly the fixed cost of
+    // a request, which is lower on the CPU, and not the prefill speed that decides a real turn.
+    private static final String CALIBRATION_PASSAGE = "Photosynthesis is the process by which green plants, algae and " +
+            "some bacteria turn light energy into chemical energy. In the chloroplasts, chlorophyll absorbs light and " +
+            "the energy is used to split water into oxygen, protons and electrons. The oxygen is released into the air. " +
+            "In the Calvin cycle, carbon dioxide from the air is then fixed into sugars, which the plant uses for growth " +
+            "and stores as starch.";
+    private static final String CALIBRATION_QUESTION = "In three sentences, explain what this passage says about photosynthesis.";
+    // Bump when the calibration changes, saved choices of the old one are measured again
+    private static final int CALIBRATION_VERSION = 2;
+    // Shape of a typical chat turn, used to weigh prefill against decode speed
+    private static final int TYPICAL_PROMPT_TOKENS = 500;
+    private static final int TYPICAL_RESPONSE_TOKENS = 150;
+    // The GPU usually wins, calibrated last it stays loaded instead of being loaded a second time
+    private static final LlmInference.Backend[] CANDIDATES = {LlmInference.Backend.CPU, LlmInference.Backend.GPU};
+    private static final String PREFILL_SPEED_SUFFIX = ":prefill";
+    private static final String DECODE_SPEED_SUFFIX = ":decode";
+
+    private static class Calibration {
+        final LlmInference.Backend backend;
+        final double prefillTokensPerSecond;
+        final double decodeTokensPerSecond;
+
+        Calibration(LlmInference.Backend backend, double prefillTokensPerSecond, double decodeTokensPerSecond) {
+            this.backend = backend;
+            this.prefillTokensPerSecond = prefillTokensPerSecond;
+            this.decodeTokensPerSecond = decodeTokensPerSecond;
+        }
+
+        double typicalTurnSeconds() {
+            return TYPICAL_PROMPT_TOKENS / prefillTokensPerSecond + TYPICAL_RESPONSE_TOKENS / decodeTokensPerSecond;
+        }
+    }
+
+    private final Context context;
+    private final SharedPreferences preferences;
+
+    public BackendSelector(Context context) {
+        this.context = context.getApplicationContext();
+        this.preferences = this.context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    // Loads the model on the fastest backend. Blocks for the whole load, and the calibration on first use.
+    public LlmInference load(String modelPath) throws Exception {
+        String key = key(modelPath);
+        String savedBackend = preferences.getString(key, null);
+        if (savedBackend != null) {
+            LlmInference.Backend backend = LlmInference.Backend.valueOf(savedBackend);
+            try {
+                Log.d(TAG, "Using saved backend " + backend + " for " + modelPath);
+                return create(modelPath, backend);
+            } catch (Exception e) {
+                Log.w(TAG, "Saved backend " + backend + " failed, calibrating again: " + e.getMessage());
+                preferences.edit().remove(key).apply();
+            }
+        }
+
+        // Only one copy of the model is in memory at a time: each candidate is closed after its calibration
+        // and the loser of the last one is swapped for the winner
+        Calibration best = null;
+        LlmInference lastLoaded = null;
+        LlmInference.Backend lastBackend = null;
+        for (LlmInference.Backend backend : CANDIDATES) {
+            if (lastLoaded != null) {
+                lastLoaded.close();
+                lastLoaded = null;
+            }
+            try {
+                lastLoaded = create(modelPath, backend);
+                lastBackend = backend;
+                Calibration calibration = calibrate(lastLoaded, backend);
+                Log.d(TAG, backend + ": prefill " + calibration.prefillTokensPerSecond + " tokens/s, decode " +
+                        calibration.decodeTokensPerSecond + " tokens/s");
+                if (best == null || calibration.typicalTurnSeconds() < best.typicalTurnSeconds()) {
+                    best = calibration;
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Backend " + backend + " is not usable: " + e.getMessage(), e);
+                if (lastLoaded != null) {
+                    lastLoaded.close();
+                    lastLoaded = null;
+                }
+            }
+        }
+        if (best == null) {
+            throw new IllegalStateException("No backend could run " + modelPath);
+        }
+
+        preferences.edit()
+                .putString(key, best.backend.name())
+                .putFloat(key + PREFILL_SPEED_SUFFIX, (float) best.prefillTokensPerSecond)
+                .putFloat(key + DECODE_SPEED_SUFFIX, (float) best.decodeTokensPerSecond)
+                .apply();
+        Log.d(TAG, "Selected backend " + best.backend + " for " + modelPath);
+        if (lastLoaded != null && lastBackend == best.backend) {
+            return lastLoaded;
+        }
+        if (lastLoaded != null) {
+            lastLoaded.close();
+        }
+        return create(modelPath, best.backend);
+    }
+
+    // Prompt tokens per second of the model on its backend, 0 until the model was calibrated
+    public double getPrefillTokensPerSecond(String modelPath) {
+        return preferences.getFloat(key(modelPath) + PREFILL_SPEED_SUFFIX, 0);
+    }
+
+    // Generated tokens per second of the model on its backend, 0 until the model was calibrated
+    public double getDecodeTokensPerSecond(String modelPath) {
+        return preferences.getFloat(key(modelPath) + DECODE_SPEED_SUFFIX, 0);
+    }
+
+    private static String key(String modelPath) {
+        return LlmEngine.modelVersion(modelPath) + ":v" + CALIBRATION_VERSION;
+    }
+
+    private LlmInference create(String modelPath, LlmInference.Backend backend) {
+        LlmInference.LlmInferenceOptions options = LlmInference.LlmInferenceOptions.builder()
+                .setModelPath(modelPath)
+                .setMaxTokens(LlmEngine.MAX_TOKENS)
+                .setPreferredBackend(backend)
+                .build();
+        return LlmInference.createFromOptions(context, options);
+    }
+
+    private Calibration calibrate(LlmInference llmInference, LlmInference.Backend backend) throws Exception {
+        LlmInferenceSession.LlmInferenceSessionOptions sessionOptions = LlmInferenceSession.LlmInferenceSessionOptions.builder()
+                .setTemperature(0)
+                .setTopK(1)
+                .build();
+        LlmInferenceSession session = LlmInferenceSession.createFromOptions(llmInference, sessionOptions);
+        try {
+            StringBuilder prompt = new StringBuilder();
+            while (session.sizeInTokens(prompt.toString()) < TYPICAL_PROMPT_TOKENS) {
+                prompt.append(CALIBRATION_PASSAGE).append('\n');
+            }
+            prompt.append(CALIBRATION_QUESTION);
+            int promptTokens = session.sizeInTokens(prompt.toString());
+            long[] firstTokenNanos = {0};
+            session.addQueryChunk(prompt.toString());
+            long start = System.nanoTime();
+            String response = session.generateResponseAsync((partialResult, done) -> {
+                if (firstTokenNanos[0] == 0 && partialResult != null && !partialResult.isEmpty()) {
+                    firstTokenNanos[0] = System.nanoTime();
+                }
+            }).get();
+            long end = System.nanoTime();
+            long firstToken = firstTokenNanos[0] != 0 ? firstTokenNanos[0] : end;
+            int responseTokens = Math.max(1, session.sizeInTokens(response != null ? response : ""));
+
+            double prefillSeconds = Math.max(1e-3, (firstToken - start) / 1e9);
+            double decodeSeconds = Math.max(1e-3, (end - firstToken) / 1e9);
+            return new Calibration(backend, promptTokens / prefillSeconds, Math.max(1, responseTokens - 1) / decodeSeconds);
+        } finally {
+            session.close();
+        }
+    }
+}
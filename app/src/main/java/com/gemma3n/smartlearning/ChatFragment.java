@@ -172,8 +172,8 @@ public class ChatFragment extends Fragment {
 
     private void observeViewModel() {
         interactionViewModel.chatMessages.observe(getViewLifecycleOwner(), messages -> {
-            chatAdapter.setMessages(messages);
-            if (messages != null && !messages.isEmpty()) {
+            // Scrolls when a message is added, not on every token of a streamed answer
+            if (chatAdapter.setMessages(messages) && messages != null && !messages.isEmpty()) {
                 chatRecyclerView.smoothScrollToPosition(messages.size() - 1);
             }
         });
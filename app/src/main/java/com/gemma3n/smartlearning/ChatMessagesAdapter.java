@@ -28,9 +28,26 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<ChatMessagesAdapte
         this.markwon = markwon;
     }
 
-    public void setMessages(List<ChatMessagePojo> newMessages) {
+    // A streamed answer replaces only the last message on every token, then only that bubble is bound again.
+    // Returns true when messages were added.
+    public boolean setMessages(List<ChatMessagePojo> newMessages) {
+        List<ChatMessagePojo> oldMessages = messages;
+        int oldCount = getItemCount();
         this.messages = newMessages;
-        notifyDataSetChanged(); // For simplicity. For better performance, use DiffUtil.
+        int newCount = getItemCount();
+        if (oldCount > 0 && newCount == oldCount && samePrefix(oldMessages, newMessages, newCount - 1)) {
+            notifyItemChanged(newCount - 1);
+            return false;
+        }
+        notifyDataSetChanged();
+        return newCount > oldCount;
+    }
+
+    private static boolean samePrefix(List<ChatMessagePojo> a, List<ChatMessagePojo> b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a.get(i) != b.get(i)) return false;
+        }
+        return true;
     }
 
     @Override
@@ -0,0 +1,203 @@
+package com.gemma3n.smartlearning;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Token accounting for one LlmInferenceSession.
+ * Keeps the lesson context and the turns of the conversation, tracks how many tokens the
+ * session holds and picks the most recent turns that fit when the session has to be rebuilt.
+ * Older turns can be compacted into a summary, which is replayed ahead of the recent turns.
+ * Token counts come from the engine's sizeInTokens, this class only adds them up.
+ */
+public class ConversationWindow {
+    // Rough cost of the markers the prompt template adds around every turn
+    private static final int TURN_OVERHEAD_TOKENS = 8;
+    // Older turns could never fit again, no need to keep them in memory
+    private static final int MAX_KEPT_TURNS = 50;
+
+    // prompt is the text replayed when the session is rebuilt, tokens is what replaying the turn costs
+    public static class Turn {
+        public final String prompt;
+        public final String response;
+        public final int tokens;
+
+        public Turn(String prompt, String response, int tokens) {
+            this.prompt = prompt;
+            this.response = response;
+            this.tokens = tokens;
+        }
+    }
+
+    private final int maxTokens;
+    private final int responseReserveTokens;
+    private final ArrayDeque<Turn> turns = new ArrayDeque<>();
+    private String context = "";
+    private int contextTokens = 0;
+    private int sessionTokens = 0;
+    // Summary of the turns that were compacted, empty until the first compaction
+    private String summary = "";
+    private int summaryTokens = 0;
+    // See getHistoryHash, written on the engine thread and read from any thread
+    private volatile String historyHash = "";
+
+    public ConversationWindow(int maxTokens, int responseReserveTokens) {
+        this.maxTokens = maxTokens;
+        this.responseReserveTokens = responseReserveTokens;
+    }
+
+    public void setContext(String context, int contextTokens) {
+        this.context = context;
+        this.contextTokens = contextTokens;
+        this.sessionTokens = contextTokens;
+        turns.clear();
+        summary = "";
+        summaryTokens = 0;
+        updateHistoryHash();
+    }
+
+    // Called when the session was cloned afresh from a base session holding contextTokens of context. A model
+    // loaded after the lesson was set counts the context only then, and another model counts it differently.
+    public void onSessionCloned(int contextTokens) {
+        this.contextTokens = contextTokens;
+        this.sessionTokens = contextTokens;
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public int getSessionTokens() {
+        return sessionTokens;
+    }
+
+    public String getSummary() {
+        return summary;
+    }
+
+    // Hash of the summary and the turns a prompt continues, empty while there are none. An answer depends on
+    // them as much as on the prompt.
+    public String getHistoryHash() {
+        return historyHash;
+    }
+
+    // What replaying the summary and the turns costs, the history a rebuilt session holds besides the context.
+    // The live session can hold more, e.g. the retrieved passages sent with past questions.
+    public int getHistoryTokens() {
+        int historyTokens = summaryTokens;
+        for (Turn turn : turns) {
+            historyTokens += turn.tokens + TURN_OVERHEAD_TOKENS;
+        }
+        return historyTokens;
+    }
+
+    // True once the history grew past highWatermarkTokens and there are older turns than the minKeptTurns
+    // most recent ones to compact
+    public boolean needsCompaction(int highWatermarkTokens, int minKeptTurns) {
+        return getHistoryTokens() > highWatermarkTokens && turns.size() > minKeptTurns;
+    }
+
+    // The turns a compaction would summarize, oldest first: the oldest ones, until the turns left take at
+    // most lowWatermarkTokens, keeping at least the minKeptTurns most recent ones
+    public List<Turn> turnsToCompact(int lowWatermarkTokens, int minKeptTurns) {
+        int keptTurns = 0;
+        int keptTokens = 0;
+        Iterator<Turn> newestFirst = turns.descendingIterator();
+        while (newestFirst.hasNext()) {
+            int tokens = newestFirst.next().tokens + TURN_OVERHEAD_TOKENS;
+            if (keptTurns >= minKeptTurns && keptTokens + tokens > lowWatermarkTokens) break;
+            keptTurns++;
+            keptTokens += tokens;
+        }
+        List<Turn> older = new ArrayList<>();
+        Iterator<Turn> oldestFirst = turns.iterator();
+        for (int i = 0; i < turns.size() - keptTurns; i++) {
+            older.add(oldestFirst.next());
+        }
+        return older;
+    }
+
+    // Replaces the compacted turns, which must still be the oldest ones, with their summary.
+    // The session has to be rebuilt afterwards for it to hold the summary instead of the turns.
+    public void onCompacted(List<Turn> compactedTurns, String summary, int summaryTokens) {
+        for (Turn turn : compactedTurns) {
+            if (turns.peekFirst() != turn) break;
+            turns.removeFirst();
+        }
+        this.summary = summary;
+        this.summaryTokens = summaryTokens;
+        updateHistoryHash();
+    }
+
+    // True if the prompt and its response still fit in the session
+    public boolean fits(int promptTokens) {
+        return sessionTokens + promptTokens + TURN_OVERHEAD_TOKENS + responseReserveTokens <= maxTokens;
+    }
+
+    // sessionTokensUsed is what the turn added to the live session, which can be more than replaying it costs
+    // (e.g. retrieved passages are sent with the question but not replayed)
+    public void addTurn(Turn turn, int sessionTokensUsed) {
+        turns.addLast(turn);
+        sessionTokens += sessionTokensUsed + TURN_OVERHEAD_TOKENS;
+        while (turns.size() > MAX_KEPT_TURNS) {
+            turns.removeFirst();
+        }
+        updateHistoryHash();
+    }
+
+    // Most recent turns that fit next to the context and the upcoming prompt, oldest first.
+    // Turns that don't fit are forgotten.
+    public List<Turn> recentTurnsFitting(int promptTokens) {
+        int budget = maxTokens - responseReserveTokens - contextTokens - summaryTokens - promptTokens - TURN_OVERHEAD_TOKENS;
+        List<Turn> kept = new ArrayList<>();
+        int used = 0;
+        Iterator<Turn> newestFirst = turns.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Turn turn = newestFirst.next();
+            if (used + turn.tokens + TURN_OVERHEAD_TOKENS > budget) break;
+            kept.add(0, turn);
+            used += turn.tokens + TURN_OVERHEAD_TOKENS;
+        }
+        turns.clear();
+        turns.addAll(kept);
+        updateHistoryHash();
+        return kept;
+    }
+
+    // Called after the session was rebuilt from the context and historyTokens worth of summary and replayed turns
+    public void onSessionRebuilt(int historyTokens) {
+        sessionTokens = contextTokens + historyTokens;
+    }
+
+    // The summary of the older turns, if any, followed by the turns
+    public static String formatHistory(String summary, List<Turn> turns) {
+        StringBuilder history = new StringBuilder("Earlier in this conversation:\n");
+        if (!summary.isEmpty()) {
+            history.append("Summary of the start of the conversation: ").append(summary).append('\n');
+        }
+        for (Turn turn : turns) {
+            history.append(formatTurn(turn.prompt, turn.response));
+        }
+        return history.toString();
+    }
+
+    public static String formatTurn(String prompt, String response) {
+        return "Student: " + prompt + "\nTeacher: " + response + "\n";
+    }
+
+    private void updateHistoryHash() {
+        if (summary.isEmpty() && turns.isEmpty()) {
+            historyHash = "";
+            return;
+        }
+        List<String> parts = new ArrayList<>();
+        parts.add(summary);
+        for (Turn turn : turns) {
+            parts.add(turn.prompt);
+            parts.add(turn.response);
+        }
+        historyHash = ContentHash.sha256(parts.toArray(new String[0]));
+    }
+}
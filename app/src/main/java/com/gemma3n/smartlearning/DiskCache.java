@@ -0,0 +1,75 @@
+package com.gemma3n.smartlearning;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Text entries stored as one file per key in a directory, bounded in total size.
+ * The least recently used entries are evicted once the directory grows over maxBytes, the file
+ * modification time is the recency. All methods do file I/O, call them off the main thread.
+ */
+public class DiskCache {
+    private static final String TAG = "DiskCache";
+
+    private final File cacheDir;
+    private final String extension;
+    private final long maxBytes;
+
+    public DiskCache(File cacheDir, String extension, long maxBytes) {
+        this.cacheDir = cacheDir;
+        this.extension = extension;
+        this.maxBytes = maxBytes;
+    }
+
+    // Returns null on a miss
+    public synchronized String get(String key) {
+        File entry = new File(cacheDir, key + extension);
+        if (!entry.exists()) {
+            return null;
+        }
+        try {
+            String text = new String(Files.readAllBytes(entry.toPath()), StandardCharsets.UTF_8);
+            entry.setLastModified(System.currentTimeMillis());
+            Log.d(TAG, "Cache hit for " + key + " in " + cacheDir.getName());
+            return text;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading cache entry: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    public synchronized void put(String key, String text) {
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            Log.e(TAG, "Failed to create cache directory: " + cacheDir.getAbsolutePath());
+            return;
+        }
+        try {
+            AtomicFiles.write(new File(cacheDir, key + extension), text);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing cache entry: " + e.getMessage(), e);
+            return;
+        }
+        evict();
+    }
+
+    private void evict() {
+        File[] entries = cacheDir.listFiles((dir, name) -> name.endsWith(extension));
+        if (entries == null) return;
+        long totalBytes = 0;
+        for (File entry : entries) {
+            totalBytes += entry.length();
+        }
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < entries.length && totalBytes > maxBytes; i++) {
+            totalBytes -= entries[i].length();
+            Log.d(TAG, "Evicting " + entries[i].getName());
+            entries[i].delete();
+        }
+    }
+}
@@ -104,6 +104,7 @@ public class DisplayTextActivity extends AppCompatActivity {
 
             Intent intentInteractionActivity = new Intent(DisplayTextActivity.this, InteractionActivity.class);
             intentInteractionActivity.putExtra(DisplayTextActivity.EXTRA_FILE_CONTENT, fileContent);
+            intentInteractionActivity.putExtra(DisplayTextActivity.EXTRA_FILE_PATH, filePath);
             startActivity(intentInteractionActivity);
         });
 
@@ -114,18 +115,8 @@ public class DisplayTextActivity extends AppCompatActivity {
                     // Show initial message about reformat duration
                     Toast.makeText(this, "Starting reformat... This may take a few minutes.", Toast.LENGTH_LONG).show();
 
-                    //TODO: Replace adapter_model.safetensors with a flatbuffer converted file, the current version of mediapipe converter don't support gemma-3n
-                    interactionViewModel.initializeLlm("/data/local/tmp/llm/gemma-3n-E2B-it-int4.task", "/data/local/tmp/llm/adapter_model.safetensors");
-
-                    interactionViewModel.isLlmReady.observe(this, isReady -> {
-                        Log.d(TAG, "isLlmReady changed: " + isReady);
-                        if (isReady) {
-                            interactionViewModel.reformatLesson(fileContent);
-                        } else {
-                            llmLoadingContainer.setVisibility(View.VISIBLE);
-                            reformatLoadingIndicator.playAnimation();
-                        }
-                    });
+                    // Served from the cache when this lesson was reformatted before, the LLM is only started on a miss
+                    interactionViewModel.reformatLesson(fileContent);
                 } else {
                     Toast.makeText(this, "No content to reformat.", Toast.LENGTH_SHORT).show();
                 }
@@ -152,6 +143,20 @@ public class DisplayTextActivity extends AppCompatActivity {
             }
         });
 
+        interactionViewModel.reformatProgress.observe(this, progress -> {
+            if (progress != null) {
+                loadingMessageText.setText(progress);
+            } else {
+                loadingMessageText.setText(R.string.reformat_loading_message);
+            }
+        });
+
+        interactionViewModel.reformatError.observe(this, error -> {
+            if (error != null) {
+                Toast.makeText(this, error, Toast.LENGTH_LONG).show();
+            }
+        });
+
         interactionViewModel.reformattedLesson.observe(this, reformattedLesson -> {
             if (reformattedLesson != null && !reformattedLesson.isEmpty()) {
                 Log.d(TAG, "reformattedLesson received");
@@ -189,11 +194,16 @@ public class DisplayTextActivity extends AppCompatActivity {
 
         // Consider running file I/O on a background thread if files can be large
         // For simplicity here, it's on the main thread. For large files, use an Executor or Coroutine.
-        try (FileOutputStream fos = new FileOutputStream(file);
-             OutputStreamWriter osw = new OutputStreamWriter(fos)) {
-            osw.write(content);
+        try {
+            try (FileOutputStream fos = new FileOutputStream(file);
+                 OutputStreamWriter osw = new OutputStreamWriter(fos)) {
+                osw.write(content);
+            }
             Toast.makeText(this, "Content saved successfully to " + file.getName(), Toast.LENGTH_LONG).show();
             Log.i(TAG, "Content saved to: " + filePath);
+            // Only the chunks the reformatting changed are embedded again. The writer is closed by now,
+            // the pipeline reads the whole file.
+            IngestionPipeline.getInstance(this).reindex(file);
 
             // After saving, decide the next state
             fileContent = content; // The saved content is now the current content
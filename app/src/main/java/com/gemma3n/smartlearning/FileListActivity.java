@@ -22,32 +22,20 @@ import androidx.lifecycle.ViewModelProvider;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import com.google.ai.edge.localagents.rag.memory.ColumnConfig;
-import com.google.ai.edge.localagents.rag.memory.VectorStoreRecord;
 import com.google.ai.edge.localagents.rag.models.EmbedData;
 import com.google.ai.edge.localagents.rag.models.EmbeddingRequest;
 import com.google.ai.edge.localagents.rag.models.GeckoEmbeddingModel;
-import com.google.ai.edge.localagents.rag.memory.SqliteVectorStore;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.ListenableFuture;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
 
 public class FileListActivity extends AppCompatActivity {
 
@@ -61,7 +49,8 @@ public class FileListActivity extends AppCompatActivity {
     private String lessonDirectoryPath;
     private File destinationDir;
     private GeckoEmbeddingModel embeddingModel;
-    private SqliteVectorStore vectorStore;
+    private LessonVectorStore vectorStore;
+    private IngestionPipeline ingestionPipeline;
     private Executor backgroundExecutor;
     private static final String TAG = "FileListActivity";
 
@@ -88,7 +77,7 @@ public class FileListActivity extends AppCompatActivity {
 
         fileListViewModel = new ViewModelProvider(this).get(FileListViewModel.class);
         File internalDir = getFilesDir(); // Gets the root of your app's internal storage: /data/data/your.package.name/files
-        destinationDir = new File(internalDir, "imported_notes");
+        destinationDir = new File(internalDir, IngestionPipeline.LESSON_DIR);
         lessonDirectoryPath = destinationDir.getAbsolutePath();
 
         fileListViewModel.loadFiles(lessonDirectoryPath);
@@ -138,17 +127,28 @@ public class FileListActivity extends AppCompatActivity {
 
         backgroundExecutor = Executors.newSingleThreadExecutor();
 
-        String geckoModelPath = "/data/local/tmp/llm/Gecko_256_quant.tflite";
-        String sentencePieceModelPath = "/data/local/tmp/llm/sentencepiece.model";
-        embeddingModel = new GeckoEmbeddingModel(geckoModelPath, Optional.of(sentencePieceModelPath), true);
-
-        // Initialize the SqliteVectorStore
-        File dbFile = new File(getFilesDir(), "text_search.db");
-        vectorStore = new SqliteVectorStore(768,
-                dbFile.getAbsolutePath(),
-                "text",
-                "embeddings",
-                SqliteVectorStore.DEFAULT_TABLE_CONFIG.toBuilder().addColumn(ColumnConfig.create("file_name", "TEXT")).build());
+        // Shared with the chat screen, which retrieves lesson chunks from the same store
+        LessonIndex lessonIndex = LessonIndex.getInstance(this);
+        embeddingModel = lessonIndex.getEmbeddingModel();
+        vectorStore = lessonIndex.getVectorStore();
+
+        // Imports keep going in the pipeline when this screen goes away, the list is refreshed as lessons are stored
+        ingestionPipeline = IngestionPipeline.getInstance(this);
+        // Picks up lessons changed, added or deleted since they were last indexed, not again on a rotation
+        if (savedInstanceState == null) {
+            ingestionPipeline.syncLessons();
+        }
+        ingestionPipeline.getStoredFile().observe(this, file -> {
+            if (file != null) {
+                fileListViewModel.loadFiles(lessonDirectoryPath);
+            }
+        });
+        ingestionPipeline.getError().observe(this, errorMsg -> {
+            if (errorMsg != null) {
+                Toast.makeText(this, errorMsg, Toast.LENGTH_LONG).show();
+                ingestionPipeline.clearError();
+            }
+        });
     }
 
     @Override
@@ -173,12 +173,11 @@ public class FileListActivity extends AppCompatActivity {
                     backgroundExecutor.execute(() -> {
                         try {
                             ImmutableList<Float> embedding = embeddingFuture.get();
-                            ImmutableList<VectorStoreRecord<String>> records =  vectorStore.getNearestRecords(embedding, 10, 0.7f);
+                            List<LessonVectorStore.Match> matches = vectorStore.nearest(embedding, null, 10, 0.7f);
                             List<String> filesList = new ArrayList<>();
-                            for (VectorStoreRecord<String> record : records) {
-                                Object file = record.getMetadata().get("file_name");
-                                if (file != null && !filesList.contains(file.toString()))
-                                    filesList.add(file.toString());
+                            for (LessonVectorStore.Match match : matches) {
+                                if (!filesList.contains(match.filePath))
+                                    filesList.add(match.filePath);
                             }
                             Log.d(TAG, "Search result files: " + filesList);
                             fileListViewModel.loadFiles(filesList);
@@ -256,78 +255,11 @@ public class FileListActivity extends AppCompatActivity {
             return;
         }
 
-        if (destinationDir == null) {
-            Toast.makeText(this, "Error accessing app storage directory.", Toast.LENGTH_SHORT).show();
-            Log.e(TAG, "Failed to get external files directory 'imported_notes'.");
-            return;
-        }
-        if (!destinationDir.exists()) {
-            if (!destinationDir.mkdirs()) {
-                Toast.makeText(this, "Error creating destination directory.", Toast.LENGTH_SHORT).show();
-                Log.e(TAG, "Failed to create directory: " + destinationDir.getAbsolutePath());
-                return;
-            }
-        }
-
-        File destinationFile = new File(destinationDir, fileName);
-
-        try (InputStream inputStream = getContentResolver().openInputStream(uri);
-             OutputStream outputStream = new FileOutputStream(destinationFile)) {
-
-            if (inputStream == null) {
-                throw new IOException("Unable to open input stream for URI: " + uri);
-            }
-
-            byte[] buffer = new byte[1024];
-            int length;
-            while ((length = inputStream.read(buffer)) > 0) {
-                outputStream.write(buffer, 0, length);
-            }
-            outputStream.flush();
-            Log.i(TAG, "File copied successfully to: " + destinationFile.getAbsolutePath());
-            Toast.makeText(this, fileName + " imported successfully!", Toast.LENGTH_SHORT).show();
-
-//            String fileContent = readFileFromAssets(destinationFile.getAbsolutePath());
-
-            String fileContent = readFileFromAssets(uri);
-            List<String> textChunks = chunkText(fileContent, 100); // Chunk size of 100 words
-
-            List<EmbedData<String>> embedDataList = new ArrayList<>();
-            for (String chunk : textChunks) {
-                EmbedData<String> embedData = EmbedData.create(chunk, EmbedData.TaskType.RETRIEVAL_DOCUMENT);
-                embedDataList.add(embedData);
-            }
-            EmbeddingRequest<String> embeddingRequest =
-                    EmbeddingRequest.create(embedDataList);
-
-            ListenableFuture<ImmutableList<ImmutableList<Float>>> embeddingFuture =
-                    embeddingModel.getBatchEmbeddings(embeddingRequest);
-
-            backgroundExecutor.execute(() -> {
-                try {
-                    ImmutableList<ImmutableList<Float>> embeddings = embeddingFuture.get();
-
-                    for (ImmutableList<Float> embedding : embeddings) {
-
-                        // Build the metadata for the record
-                        ImmutableMap<String, Object> metadata = ImmutableMap.of("file_name", destinationFile.getAbsolutePath());
-
-                        // Create the Record to be stored in the VectorStore
-                        VectorStoreRecord<String> vectorStoreRecord = VectorStoreRecord.create("", embedding, metadata);
-
-                        vectorStore.insert(vectorStoreRecord);
-                    }
-                } catch (InterruptedException | ExecutionException e) {
-                    Log.e(TAG, "Error embedding or adding record: " + e.getMessage(), e);
-                    // Consider adding more robust error handling, e.g., callback to UI
-                }
-            });
-
-            fileListViewModel.loadFiles(lessonDirectoryPath);
-
-        } catch (IOException e) {
-            Log.e(TAG, "Error copying file", e);
-            Toast.makeText(this, "Error importing file: " + e.getMessage(), Toast.LENGTH_LONG).show();
+        // Copied, chunked, embedded and indexed in the background, the list is refreshed once the file is stored
+        if (ingestionPipeline.importUri(uri, fileName)) {
+            Toast.makeText(this, "Importing " + fileName + "...", Toast.LENGTH_SHORT).show();
+        } else {
+            Toast.makeText(this, "Too many imports in progress, please try again shortly.", Toast.LENGTH_LONG).show();
         }
     }
 
@@ -355,27 +287,4 @@ public class FileListActivity extends AppCompatActivity {
         }
         return fileName;
     }
-
-    private String readFileFromAssets(Uri uri) throws IOException {
-
-        try (InputStream is = getContentResolver().openInputStream(uri)) {
-//        InputStream is = getAssets().open(fileName);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-            return reader.lines().collect(Collectors.joining("\n"));
-        }
-    }
-
-    private List<String> chunkText(String text, int chunkSize) {
-        List<String> chunks = new ArrayList<>();
-        String[] words = text.split("\\s+");
-        StringBuilder chunkBuilder = new StringBuilder();
-        for (int i = 0; i < words.length; i++) {
-            chunkBuilder.append(words[i]).append(" ");
-            if ((i + 1) % chunkSize == 0 || i == words.length - 1) {
-                chunks.add(chunkBuilder.toString().trim());
-                chunkBuilder = new StringBuilder();
-            }
-        }
-        return chunks;
-    }
 }
\ No newline at end of file
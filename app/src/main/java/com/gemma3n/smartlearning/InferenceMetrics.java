@@ -0,0 +1,328 @@
+package com.gemma3n.smartlearning;
+
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Timing of the most recent inference requests, to see where the time goes and to catch
+ * regressions when the model or the prompts change. Each request fills a Trace from the moment it
+ * enters LlmHelper, through the caches, the scheduler, the engine and the main thread, and records a
+ * Sample when its result has been delivered. Requests answered without the model are recorded with
+ * their Outcome and counted apart from the timings of generated ones, so cache hits neither hide nor
+ * flatter the model's latency. Samples are kept in a ring buffer of CAPACITY entries, only in memory.
+ * Model reloads after an unload are counted apart, they are paid by whichever request comes next.
+ */
+public class InferenceMetrics {
+    private static final String TAG = "InferenceMetrics";
+    private static final int CAPACITY = 200;
+
+    private static InferenceMetrics instance;
+
+    public static synchronized InferenceMetrics getInstance() {
+        if (instance == null) {
+            instance = new InferenceMetrics();
+        }
+        return instance;
+    }
+
+    // How a request was answered
+    public enum Outcome {
+        GENERATED("model"),
+        MEMO("memo"),
+        SEMANTIC_CACHE("semantic cache"),
+        PRE_GRADED("pre-graded");
+
+        final String label;
+
+        Outcome(String label) {
+            this.label = label;
+        }
+    }
+
+    public static class Sample {
+        public final String label;
+        public final Outcome outcome;
+        // Request entered until the scheduler started it, includes the cache lookups
+        public final long queueWaitMillis;
+        // Generation started until the first token, the prompt is prefilled in this time
+        public final long prefillMillis;
+        // Request entered until the first token, what the student waits before text shows up. For a request
+        // answered without the model, until the answer was delivered.
+        public final long timeToFirstTokenMillis;
+        // First token until the last one
+        public final long decodeMillis;
+        public final int promptTokens;
+        public final int responseTokens;
+        // Longest time a result posted to the main thread waited there before it ran
+        public final long callbackDelayMillis;
+
+        Sample(String label, Outcome outcome, long queueWaitMillis, long prefillMillis, long timeToFirstTokenMillis,
+               long decodeMillis, int promptTokens, int responseTokens, long callbackDelayMillis) {
+            this.label = label;
+            this.outcome = outcome;
+            this.queueWaitMillis = queueWaitMillis;
+            this.prefillMillis = prefillMillis;
+            this.timeToFirstTokenMillis = timeToFirstTokenMillis;
+            this.decodeMillis = decodeMillis;
+            this.promptTokens = promptTokens;
+            this.responseTokens = responseTokens;
+            this.callbackDelayMillis = callbackDelayMillis;
+        }
+
+        public int totalTokens() {
+            return promptTokens + responseTokens;
+        }
+
+        public double prefillTokensPerSecond() {
+            return prefillMillis > 0 ? promptTokens * 1000.0 / prefillMillis : 0;
+        }
+
+        // The first token comes out of the prefill, the decode time covers the ones after it
+        public double decodeTokensPerSecond() {
+            return decodeMillis > 0 ? Math.max(0, responseTokens - 1) * 1000.0 / decodeMillis : 0;
+        }
+    }
+
+    /**
+     * Timestamps of one request. Created when the request enters LlmHelper; the engine thread marks
+     * start, generation and tokens, the main thread measures its callbacks and finishes the trace,
+     * or records it as served when the answer came from a cache.
+     */
+    public static class Trace {
+        private final String label;
+        private final long submittedNanos = System.nanoTime();
+        private volatile long startedNanos;
+        private volatile long generateNanos;
+        private volatile long firstTokenNanos;
+        private volatile long doneNanos;
+        private volatile int promptTokens;
+        private volatile int responseTokens;
+        private volatile long maxCallbackDelayNanos;
+
+        public Trace(String label) {
+            this.label = label;
+        }
+
+        public void onStarted() {
+            startedNanos = System.nanoTime();
+        }
+
+        public void onGenerateStarted(int promptTokens) {
+            this.promptTokens = promptTokens;
+            generateNanos = System.nanoTime();
+        }
+
+        public void onToken() {
+            if (firstTokenNanos == 0) {
+                firstTokenNanos = System.nanoTime();
+            }
+        }
+
+        public void onGenerated(int responseTokens) {
+            this.responseTokens = responseTokens;
+            doneNanos = System.nanoTime();
+        }
+
+        // Wraps a callback that is about to be posted to the main thread to measure how long it waits there
+        public Runnable measureCallback(Runnable callback) {
+            long postedNanos = System.nanoTime();
+            return () -> {
+                maxCallbackDelayNanos = Math.max(maxCallbackDelayNanos, System.nanoTime() - postedNanos);
+                callback.run();
+            };
+        }
+
+        // Records the request, called once its last callback has run. Requests that never generated are skipped.
+        public void finish() {
+            if (startedNanos == 0 || generateNanos == 0 || doneNanos == 0) {
+                return;
+            }
+            long firstToken = firstTokenNanos != 0 ? firstTokenNanos : doneNanos;
+            getInstance().record(new Sample(label, Outcome.GENERATED,
+                    millis(startedNanos - submittedNanos),
+                    millis(firstToken - generateNanos),
+                    millis(firstToken - submittedNanos),
+                    millis(doneNanos - firstToken),
+                    promptTokens,
+                    responseTokens,
+                    millis(maxCallbackDelayNanos)));
+        }
+
+        // Records a request answered without the model, called once the answer was delivered
+        public void onServed(Outcome outcome) {
+            getInstance().record(new Sample(label, outcome, 0, 0, millis(System.nanoTime() - submittedNanos), 0, 0, 0,
+                    millis(maxCallbackDelayNanos)));
+        }
+
+        private static long millis(long nanos) {
+            return nanos / 1_000_000;
+        }
+    }
+
+    public static class Percentiles {
+        public final double p50;
+        public final double p90;
+        public final double p99;
+
+        Percentiles(double[] values) {
+            Arrays.sort(values);
+            this.p50 = nearestRank(values, 50);
+            this.p90 = nearestRank(values, 90);
+            this.p99 = nearestRank(values, 99);
+        }
+
+        private static double nearestRank(double[] sorted, int percentile) {
+            if (sorted.length == 0) return 0;
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+
+        String format(String unit) {
+            return String.format(Locale.US, "%.0f/%.0f/%.0f%s", p50, p90, p99, unit);
+        }
+    }
+
+    public static class Summary {
+        // Percentiles are over the generated requests only
+        public final int sampleCount;
+        public final Sample last;
+        public final Percentiles queueWaitMillis;
+        public final Percentiles timeToFirstTokenMillis;
+        public final Percentiles prefillTokensPerSecond;
+        public final Percentiles decodeTokensPerSecond;
+        public final Percentiles totalTokens;
+        public final Percentiles callbackDelayMillis;
+        public final int reloadCount;
+        public final long lastReloadMillis;
+        // Requests answered without the model, by outcome
+        public final Map<Outcome, Integer> servedCounts = new EnumMap<>(Outcome.class);
+
+        Summary(List<Sample> allSamples, int reloadCount, long lastReloadMillis) {
+            List<Sample> samples = new ArrayList<>();
+            for (Sample sample : allSamples) {
+                if (sample.outcome == Outcome.GENERATED) {
+                    samples.add(sample);
+                } else {
+                    Integer count = servedCounts.get(sample.outcome);
+                    servedCounts.put(sample.outcome, count != null ? count + 1 : 1);
+                }
+            }
+            int n = samples.size();
+            double[] queueWait = new double[n];
+            double[] timeToFirstToken = new double[n];
+            double[] prefillRate = new double[n];
+            double[] decodeRate = new double[n];
+            double[] tokens = new double[n];
+            double[] callbackDelay = new double[n];
+            for (int i = 0; i < n; i++) {
+                Sample sample = samples.get(i);
+                queueWait[i] = sample.queueWaitMillis;
+                timeToFirstToken[i] = sample.timeToFirstTokenMillis;
+                prefillRate[i] = sample.prefillTokensPerSecond();
+                decodeRate[i] = sample.decodeTokensPerSecond();
+                tokens[i] = sample.totalTokens();
+                callbackDelay[i] = sample.callbackDelayMillis;
+            }
+            this.sampleCount = n;
+            this.last = n > 0 ? samples.get(n - 1) : null;
+            this.queueWaitMillis = new Percentiles(queueWait);
+            this.timeToFirstTokenMillis = new Percentiles(timeToFirstToken);
+            this.prefillTokensPerSecond = new Percentiles(prefillRate);
+            this.decodeTokensPerSecond = new Percentiles(decodeRate);
+            this.totalTokens = new Percentiles(tokens);
+            this.callbackDelayMillis = new Percentiles(callbackDelay);
+            this.reloadCount = reloadCount;
+            this.lastReloadMillis = lastReloadMillis;
+        }
+
+        // Multi-line text for the debug overlay, percentiles are p50/p90/p99
+        public String format() {
+            StringBuilder text = new StringBuilder();
+            text.append("requests: ").append(sampleCount).append("  (p50/p90/p99)\n");
+            text.append("queue wait: ").append(queueWaitMillis.format("ms")).append('\n');
+            text.append("TTFT: ").append(timeToFirstTokenMillis.format("ms")).append('\n');
+            text.append("prefill: ").append(prefillTokensPerSecond.format(" tok/s")).append('\n');
+            text.append("decode: ").append(decodeTokensPerSecond.format(" tok/s")).append('\n');
+            text.append("tokens: ").append(totalTokens.format("")).append('\n');
+            text.append("callback delay: ").append(callbackDelayMillis.format("ms"));
+            if (!servedCounts.isEmpty()) {
+                text.append("\nserved without the model:");
+                for (Map.Entry<Outcome, Integer> served : servedCounts.entrySet()) {
+                    text.append(' ').append(served.getKey().label).append(' ').append(served.getValue());
+                }
+            }
+            if (reloadCount > 0) {
+                text.append("\nmodel reloads: ").append(reloadCount).append(", last ").append(lastReloadMillis).append("ms");
+            }
+            if (last != null) {
+                text.append(String.format(Locale.US, "\nlast %s: TTFT %dms, %d+%d tokens",
+                        last.label, last.timeToFirstTokenMillis, last.promptTokens, last.responseTokens));
+            }
+            return text.toString();
+        }
+    }
+
+    private final Sample[] samples = new Sample[CAPACITY];
+    private int nextIndex = 0;
+    private int sampleCount = 0;
+    private int reloadCount = 0;
+    private long lastReloadMillis = 0;
+    private final MutableLiveData<Summary> summary = new MutableLiveData<>();
+
+    private InferenceMetrics() {}
+
+    public void record(Sample sample) {
+        synchronized (this) {
+            samples[nextIndex] = sample;
+            nextIndex = (nextIndex + 1) % CAPACITY;
+            sampleCount = Math.min(sampleCount + 1, CAPACITY);
+        }
+        if (sample.outcome == Outcome.GENERATED) {
+            Log.d(TAG, String.format(Locale.US, "%s: queue %dms, TTFT %dms, prefill %.1f tok/s, decode %.1f tok/s, %d tokens, callback %dms",
+                    sample.label, sample.queueWaitMillis, sample.timeToFirstTokenMillis, sample.prefillTokensPerSecond(),
+                    sample.decodeTokensPerSecond(), sample.totalTokens(), sample.callbackDelayMillis));
+        } else {
+            Log.d(TAG, String.format(Locale.US, "%s: served from the %s in %dms, callback %dms",
+                    sample.label, sample.outcome.label, sample.timeToFirstTokenMillis, sample.callbackDelayMillis));
+        }
+        summary.postValue(summarize());
+    }
+
+    // Time spent loading the model again after it was unloaded to free memory
+    public void recordReload(long loadMillis) {
+        synchronized (this) {
+            reloadCount++;
+            lastReloadMillis = loadMillis;
+        }
+        Log.d(TAG, "Model reload took " + loadMillis + "ms");
+        summary.postValue(summarize());
+    }
+
+    // Oldest first
+    public synchronized List<Sample> getSamples() {
+        List<Sample> result = new ArrayList<>(sampleCount);
+        int oldest = (nextIndex - sampleCount + CAPACITY) % CAPACITY;
+        for (int i = 0; i < sampleCount; i++) {
+            result.add(samples[(oldest + i) % CAPACITY]);
+        }
+        return result;
+    }
+
+    public synchronized Summary summarize() {
+        return new Summary(getSamples(), reloadCount, lastReloadMillis);
+    }
+
+    // Updated after every recorded request
+    public LiveData<Summary> getSummary() {
+        return summary;
+    }
+}
@@ -0,0 +1,161 @@
+package com.gemma3n.smartlearning;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs inference requests one at a time on a single thread, highest priority lane first.
+ * Every request gets a CancellationToken: a cancelled request that hasn't started is dropped,
+ * a running one is asked to stop its generation. Requests are tied to an owner, which must cancel
+ * them with cancelAll when it goes away (LlmHelper.close, called when its ViewModel is cleared).
+ * Jobs usually capture their owner, so the queue keeps it reachable until then.
+ */
+public class InferenceScheduler {
+    private static final String TAG = "InferenceScheduler";
+
+    // A queued request always runs before the queued requests of the lanes below it
+    public enum Priority {
+        SYSTEM,      // model load, session setup and teardown
+        INTERACTIVE, // chat and quiz turns the student is waiting for
+        BACKGROUND,  // work done ahead of time
+        BATCH        // long jobs like reformatting a lesson
+    }
+
+    public interface Job {
+        void run(CancellationToken token) throws Exception;
+    }
+
+    public static class CancellationToken {
+        private volatile boolean cancelled = false;
+        private Runnable onCancel;
+
+        public void cancel() {
+            Runnable action;
+            synchronized (this) {
+                if (cancelled) return;
+                cancelled = true;
+                action = onCancel;
+            }
+            if (action != null) {
+                action.run();
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        // Set by a running job to stop its work when the request is cancelled, cleared with null when done
+        public void setOnCancel(Runnable onCancel) {
+            boolean runNow;
+            synchronized (this) {
+                this.onCancel = onCancel;
+                runNow = cancelled && onCancel != null;
+            }
+            if (runNow) {
+                onCancel.run();
+            }
+        }
+    }
+
+    private static class Request implements Comparable<Request> {
+        final Priority priority;
+        final long sequence;
+        final Object owner;
+        final Job job;
+        final CancellationToken token = new CancellationToken();
+
+        Request(Priority priority, long sequence, Object owner, Job job) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.owner = owner;
+            this.job = job;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityBlockingQueue<Request> queue = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile Request runningRequest;
+    private final CopyOnWriteArrayList<Runnable> requestFinishedListeners = new CopyOnWriteArrayList<>();
+
+    public InferenceScheduler(String threadName) {
+        Thread worker = new Thread(this::runRequests, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // owner can be null for requests that must always run
+    public CancellationToken submit(Priority priority, Object owner, Job job) {
+        Request request = new Request(priority, sequence.getAndIncrement(), owner, job);
+        queue.add(request);
+        return request.token;
+    }
+
+    // Cancels the queued and running requests of the owner
+    public void cancelAll(Object owner) {
+        for (Request request : queue) {
+            if (request.owner == owner) {
+                request.token.cancel();
+                queue.remove(request);
+            }
+        }
+        Request running = runningRequest;
+        if (running != null && running.owner == owner) {
+            Log.d(TAG, "Cancelling running " + running.priority + " request.");
+            running.token.cancel();
+        }
+    }
+
+    // Called on the inference thread after every request that ran, whether it succeeded or not
+    public void addRequestFinishedListener(Runnable listener) {
+        requestFinishedListeners.add(listener);
+    }
+
+    // True while inference work is waiting, housekeeping in the SYSTEM lane doesn't count
+    public boolean hasQueuedRequests() {
+        for (Request request : queue) {
+            if (request.priority != Priority.SYSTEM && !request.token.isCancelled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void runRequests() {
+        while (true) {
+            Request request;
+            try {
+                request = queue.take();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Inference thread interrupted.");
+                return;
+            }
+            if (request.token.isCancelled()) {
+                Log.d(TAG, "Dropping cancelled " + request.priority + " request.");
+                continue;
+            }
+            runningRequest = request;
+            try {
+                request.job.run(request.token);
+            } catch (Exception e) {
+                Log.e(TAG, "Error running " + request.priority + " request: " + e.getMessage(), e);
+            } finally {
+                runningRequest = null;
+            }
+            for (Runnable listener : requestFinishedListeners) {
+                listener.run();
+            }
+        }
+    }
+}
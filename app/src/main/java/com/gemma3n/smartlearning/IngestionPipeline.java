@@ -0,0 +1,535 @@
+package com.gemma3n.smartlearning;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Imports lessons into imported_notes and indexes them into the lesson vector store, for every
+ * import path (file picker, shared content, bulk imports). Application scoped, so an import keeps
+ * going when the screen that started it is rotated or closed.
+ * Each stage (copy and normalize, chunk, embed, insert) runs on its own thread and hands its output
+ * to the next one through a bounded queue: a stage that falls behind blocks the one before it
+ * instead of piling up chunks and embeddings in memory, and the stages of consecutive lessons
+ * overlap.
+ * Lessons are streamed through every stage, from the source to the file and from the file to the
+ * chunks, so memory stays the same for a short note and a lecture transcript of several hours.
+ * Indexing is incremental: a lesson whose content hash is unchanged is skipped, and of a changed
+ * one only the chunks with a new hash are embedded, the rows of the chunks that are gone are
+ * deleted (see LessonVectorStore).
+ */
+public class IngestionPipeline {
+    private static final String TAG = "IngestionPipeline";
+    public static final String LESSON_DIR = "imported_notes";
+    // Imports waiting to be copied, submit refuses more
+    private static final int PENDING_IMPORTS = 16;
+    // Work items between two stages
+    private static final int STAGE_QUEUE_CAPACITY = 4;
+    // Chunks embedded per call, bounds the embeddings held between the embed and the insert stage
+    private static final int EMBED_BATCH_SIZE = 32;
+
+    private static IngestionPipeline instance;
+
+    // One of uri, text or file is set, or none of them to sync the whole lesson directory
+    private static class ImportRequest {
+        final String fileName;
+        final Uri uri;
+        final String text;
+        // A lesson already in the lesson directory, indexed again without copying
+        final File file;
+
+        ImportRequest(String fileName, Uri uri, String text, File file) {
+            this.fileName = fileName;
+            this.uri = uri;
+            this.text = text;
+            this.file = file;
+        }
+    }
+
+    // A lesson stored in the lesson directory, with the hash of its content
+    private static class Document {
+        final String filePath;
+        final String contentHash;
+
+        Document(String filePath, String contentHash) {
+            this.filePath = filePath;
+            this.contentHash = contentHash;
+        }
+    }
+
+    // Chunks of a lesson to embed and insert. The last batch of a lesson, possibly without chunks, also
+    // carries the rows to delete, the new offsets of the kept rows and the content hash to record once its
+    // chunks are inserted.
+    private static class ChunkBatch {
+        final String filePath;
+        final boolean last;
+        final List<LessonChunker.Chunk> chunks;
+        final List<String> chunkHashes;
+        final ImmutableList<ImmutableList<Float>> embeddings;
+        final List<Long> staleRowIds;
+        final Map<Long, int[]> keptRows;
+        final String contentHash;
+
+        ChunkBatch(String filePath, boolean last, List<LessonChunker.Chunk> chunks, List<String> chunkHashes,
+                   ImmutableList<ImmutableList<Float>> embeddings, List<Long> staleRowIds, Map<Long, int[]> keptRows,
+                   String contentHash) {
+            this.filePath = filePath;
+            this.last = last;
+            this.chunks = chunks;
+            this.chunkHashes = chunkHashes;
+            this.embeddings = embeddings;
+            this.staleRowIds = staleRowIds;
+            this.keptRows = keptRows;
+            this.contentHash = contentHash;
+        }
+
+        ChunkBatch withEmbeddings(ImmutableList<ImmutableList<Float>> embeddings) {
+            return new ChunkBatch(filePath, last, chunks, chunkHashes, embeddings, staleRowIds, keptRows, contentHash);
+        }
+    }
+
+    private interface Stage<T> {
+        void process(T item) throws Exception;
+    }
+
+    private final Context context;
+    private final File lessonDir;
+    private final LessonIndex lessonIndex;
+    private final LessonVectorStore vectorStore;
+    private final LessonChunker chunker = new LessonChunker();
+    private final BlockingQueue<ImportRequest> imports = new ArrayBlockingQueue<>(PENDING_IMPORTS);
+    private final BlockingQueue<Document> documents = new ArrayBlockingQueue<>(STAGE_QUEUE_CAPACITY);
+    private final BlockingQueue<ChunkBatch> chunkBatches = new ArrayBlockingQueue<>(STAGE_QUEUE_CAPACITY);
+    private final BlockingQueue<ChunkBatch> embeddedBatches = new ArrayBlockingQueue<>(STAGE_QUEUE_CAPACITY);
+    // Content hash of each lesson queued for indexing, until its last batch is inserted, so a sync while a
+    // lesson is still being indexed doesn't queue it again
+    private final Map<String, String> queuedLessons = new ConcurrentHashMap<>();
+    // Lessons between the chunk and the insert stage. Another version of one waits for it to be inserted,
+    // diffing against the rows of half a lesson would insert its remaining chunks twice.
+    private final Set<String> indexingLessons = new HashSet<>();
+    // Lessons that lost a batch on the way. Their content hash isn't recorded, so the next sync indexes them
+    // again, reusing the rows that were inserted.
+    private final Set<String> failedLessons = ConcurrentHashMap.newKeySet();
+    // Embedded chunks waiting to be written by lesson, only touched by the insert stage
+    private final Map<String, List<LessonVectorStore.Row>> pendingRows = new LinkedHashMap<>();
+
+    private final MutableLiveData<File> storedFile = new MutableLiveData<>(null);
+    private final MutableLiveData<String> error = new MutableLiveData<>(null);
+
+    private IngestionPipeline(Context context) {
+        this.context = context;
+        this.lessonDir = new File(context.getFilesDir(), LESSON_DIR);
+        this.lessonIndex = LessonIndex.getInstance(context);
+        this.vectorStore = lessonIndex.getVectorStore();
+        startStage("ingest-copy", imports, this::copy);
+        startStage("ingest-chunk", documents, this::chunk);
+        startStage("ingest-embed", chunkBatches, this::embed);
+        startStage("ingest-insert", embeddedBatches, this::insert);
+    }
+
+    public static synchronized IngestionPipeline getInstance(Context context) {
+        if (instance == null) {
+            instance = new IngestionPipeline(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    // Copies the document behind uri into the lesson directory as fileName and indexes it.
+    // Returns false when too many imports are already waiting.
+    public boolean importUri(Uri uri, String fileName) {
+        return submit(new ImportRequest(fileName, uri, null, null));
+    }
+
+    // Saves text into the lesson directory as fileName and indexes it.
+    // Returns false when too many imports are already waiting.
+    public boolean importText(String text, String fileName) {
+        return submit(new ImportRequest(fileName, null, text, null));
+    }
+
+    // Indexes a lesson file again after it was changed in place, only its changed chunks are embedded.
+    // Returns false when too many imports are already waiting.
+    public boolean reindex(File file) {
+        return submit(new ImportRequest(file.getName(), null, null, file));
+    }
+
+    // Indexes the lessons of the lesson directory that changed since they were last indexed and forgets
+    // the deleted ones. Unchanged lessons only cost reading and hashing them.
+    public boolean syncLessons() {
+        return submit(new ImportRequest(null, null, null, null));
+    }
+
+    // The last lesson written to the lesson directory, set once its file exists and before it is indexed
+    public LiveData<File> getStoredFile() {
+        return storedFile;
+    }
+
+    public LiveData<String> getError() {
+        return error;
+    }
+
+    public void clearError() {
+        error.setValue(null);
+    }
+
+    private boolean submit(ImportRequest request) {
+        if (!imports.offer(request)) {
+            Log.w(TAG, "Import queue full, refusing " + request.fileName);
+            return false;
+        }
+        return true;
+    }
+
+    private <T> void startStage(String name, BlockingQueue<T> input, Stage<T> stage) {
+        Thread worker = new Thread(() -> {
+            while (true) {
+                T item;
+                try {
+                    item = input.take();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, name + " thread interrupted.");
+                    return;
+                }
+                try {
+                    stage.process(item);
+                } catch (InterruptedException e) {
+                    Log.w(TAG, name + " thread interrupted.");
+                    return;
+                } catch (Exception e) {
+                    // One broken document doesn't stop the others
+                    Log.e(TAG, "Error in " + name + ": " + e.getMessage(), e);
+                    error.postValue("Error importing lesson: " + e.getMessage());
+                }
+            }
+        }, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void copy(ImportRequest request) throws IOException, InterruptedException {
+        if (request.fileName == null) {
+            sync();
+            return;
+        }
+        if (request.file != null) {
+            reindexFile(request.file.getAbsolutePath());
+            return;
+        }
+        if (!lessonDir.exists() && !lessonDir.mkdirs()) {
+            throw new IOException("Failed to create directory: " + lessonDir.getAbsolutePath());
+        }
+        File destinationFile = new File(lessonDir, request.fileName);
+        String contentHash;
+        try (Reader in = openSource(request)) {
+            contentHash = AtomicFiles.write(destinationFile, out -> normalize(in, out));
+        }
+        Log.i(TAG, "Lesson stored: " + destinationFile.getAbsolutePath());
+        storedFile.postValue(destinationFile);
+        queue(destinationFile.getAbsolutePath(), contentHash);
+    }
+
+    private void sync() throws IOException, InterruptedException {
+        File[] files = lessonDir.listFiles((dir, name) ->
+                name.endsWith(".txt") || name.endsWith(".md") || name.endsWith(".text"));
+        List<String> present = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                present.add(file.getAbsolutePath());
+                reindexFile(file.getAbsolutePath());
+            }
+        }
+        for (String filePath : vectorStore.getLessonFiles()) {
+            if (!present.contains(filePath)) {
+                Log.d(TAG, "Lesson deleted, removing it from the index: " + filePath);
+                vectorStore.removeLesson(filePath);
+            }
+        }
+    }
+
+    // A lesson file changed in place is indexed as it is, the file belongs to whoever changed it and is never
+    // rewritten here. An unchanged one costs a read to hash it.
+    private void reindexFile(String filePath) throws IOException, InterruptedException {
+        String contentHash;
+        try (Reader in = openFile(filePath)) {
+            contentHash = hash(in);
+        }
+        if (contentHash.equals(vectorStore.getContentHash(filePath))) {
+            Log.d(TAG, "Lesson unchanged, not indexed again: " + filePath);
+            return;
+        }
+        if (contentHash.equals(queuedLessons.get(filePath))) {
+            Log.d(TAG, "Lesson already queued for indexing: " + filePath);
+            return;
+        }
+        queue(filePath, contentHash);
+    }
+
+    private void queue(String filePath, String contentHash) throws InterruptedException {
+        if (contentHash.equals(queuedLessons.put(filePath, contentHash))) {
+            Log.d(TAG, "Lesson already queued for indexing: " + filePath);
+            return;
+        }
+        documents.put(new Document(filePath, contentHash));
+    }
+
+    // Diffs the lesson's chunks against the manifest as they are read from the file, only new chunks go on
+    // to be embedded, a batch at a time
+    private void chunk(Document document) throws InterruptedException {
+        synchronized (indexingLessons) {
+            while (indexingLessons.contains(document.filePath)) {
+                indexingLessons.wait();
+            }
+            indexingLessons.add(document.filePath);
+        }
+        if (document.contentHash.equals(vectorStore.getContentHash(document.filePath))) {
+            Log.d(TAG, "Lesson unchanged, not indexed again: " + document.filePath);
+            finishIndexing(document.filePath, document.contentHash);
+            return;
+        }
+        try {
+            chunkChanged(document);
+        } catch (IOException | RuntimeException e) {
+            failLesson(document.filePath, e);
+            // The batches already queued still go through, the lesson is done once they have
+            chunkBatches.put(new ChunkBatch(document.filePath, true, new ArrayList<>(), new ArrayList<>(), null,
+                    new ArrayList<>(), new HashMap<>(), document.contentHash));
+        }
+    }
+
+    private void chunkChanged(Document document) throws IOException, InterruptedException {
+        Map<String, List<Long>> existingRows = vectorStore.getChunkRows(document.filePath);
+        // Still in the lesson, the row is kept and only its offsets are updated
+        Map<Long, int[]> keptRows = new HashMap<>();
+        List<LessonChunker.Chunk> batch = new ArrayList<>();
+        List<String> batchHashes = new ArrayList<>();
+        int chunkCount = 0;
+        int newChunkCount = 0;
+        try (Reader in = openFile(document.filePath)) {
+            Iterator<LessonChunker.Chunk> chunks = chunker.chunks(in);
+            while (chunks.hasNext()) {
+                LessonChunker.Chunk chunk = chunks.next();
+                chunkCount++;
+                String chunkHash = ContentHash.sha256(chunk.text);
+                List<Long> rows = existingRows.get(chunkHash);
+                if (rows != null && !rows.isEmpty()) {
+                    keptRows.put(rows.remove(rows.size() - 1), new int[]{chunk.start, chunk.end});
+                    continue;
+                }
+                newChunkCount++;
+                batch.add(chunk);
+                batchHashes.add(chunkHash);
+                if (batch.size() == EMBED_BATCH_SIZE) {
+                    // Blocks while the embed stage is behind, so reading the file waits for it
+                    chunkBatches.put(new ChunkBatch(document.filePath, false, batch, batchHashes, null, null, null, null));
+                    batch = new ArrayList<>();
+                    batchHashes = new ArrayList<>();
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        List<Long> staleRowIds = new ArrayList<>();
+        for (List<Long> rows : existingRows.values()) {
+            staleRowIds.addAll(rows);
+        }
+        Log.d(TAG, document.filePath + ": " + newChunkCount + " of " + chunkCount + " chunks to embed, " +
+                staleRowIds.size() + " stale rows");
+        chunkBatches.put(new ChunkBatch(document.filePath, true, batch, batchHashes, null, staleRowIds, keptRows, document.contentHash));
+    }
+
+    // A batch that fails to embed goes on without embeddings, the last batch of its lesson must still arrive
+    private void embed(ChunkBatch batch) throws InterruptedException {
+        ImmutableList<ImmutableList<Float>> embeddings = ImmutableList.of();
+        if (!batch.chunks.isEmpty() && !failedLessons.contains(batch.filePath)) {
+            List<String> texts = new ArrayList<>();
+            for (LessonChunker.Chunk chunk : batch.chunks) {
+                texts.add(chunk.text);
+            }
+            try {
+                embeddings = lessonIndex.embedDocuments(texts);
+            } catch (Exception e) {
+                failLesson(batch.filePath, e);
+            }
+        }
+        embeddedBatches.put(batch.withEmbeddings(embeddings));
+    }
+
+    // Rows of consecutive batches of a lesson are written together, in transactions of the store's insert
+    // batch size. The rows of a lesson are never written with those of another one, a failed write only
+    // fails its own lesson.
+    private void insert(ChunkBatch batch) {
+        List<LessonVectorStore.Row> rows = pendingRows.computeIfAbsent(batch.filePath, filePath -> new ArrayList<>());
+        // The chunk text is kept for chat retrieval, the file path to search a single lesson
+        for (int i = 0; i < batch.embeddings.size(); i++) {
+            LessonChunker.Chunk chunk = batch.chunks.get(i);
+            rows.add(new LessonVectorStore.Row(batch.filePath, batch.chunkHashes.get(i), chunk.text,
+                    chunk.start, chunk.end, batch.embeddings.get(i)));
+        }
+        if (rows.size() >= vectorStore.getInsertBatchSize() || batch.last) {
+            pendingRows.remove(batch.filePath);
+            try {
+                vectorStore.insertAll(rows);
+            } catch (RuntimeException e) {
+                failLesson(batch.filePath, e);
+            }
+        }
+        if (batch.last) {
+            try {
+                if (failedLessons.contains(batch.filePath)) {
+                    Log.w(TAG, "Lesson partly indexed, indexed again on the next sync: " + batch.filePath);
+                } else {
+                    // New rows are in before the old ones go, the lesson stays searchable throughout
+                    vectorStore.deleteRows(batch.staleRowIds);
+                    vectorStore.updateOffsets(batch.keptRows);
+                    vectorStore.setContentHash(batch.filePath, batch.contentHash);
+                    Log.d(TAG, "Indexed " + batch.filePath);
+                }
+            } finally {
+                finishIndexing(batch.filePath, batch.contentHash);
+            }
+        }
+    }
+
+    private void failLesson(String filePath, Exception e) {
+        failedLessons.add(filePath);
+        Log.e(TAG, "Error indexing " + filePath + ": " + e.getMessage(), e);
+        error.postValue("Error importing lesson: " + e.getMessage());
+    }
+
+    // Lets the next version of the lesson be chunked
+    private void finishIndexing(String filePath, String contentHash) {
+        failedLessons.remove(filePath);
+        queuedLessons.remove(filePath, contentHash);
+        synchronized (indexingLessons) {
+            indexingLessons.remove(filePath);
+            indexingLessons.notifyAll();
+        }
+    }
+
+    private Reader openSource(ImportRequest request) throws IOException {
+        if (request.text != null) {
+            return new StringReader(request.text);
+        }
+        InputStream is = context.getContentResolver().openInputStream(request.uri);
+        if (is == null) {
+            throw new IOException("Unable to open input stream for URI: " + request.uri);
+        }
+        return new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+    }
+
+    private static Reader openFile(String filePath) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(filePath), StandardCharsets.UTF_8));
+    }
+
+    // Same text whichever way it was imported: no byte order mark, \n line endings, no trailing spaces on a line,
+    // at most one blank line in a row, no leading or trailing whitespace. Streams the text to out, which can
+    // be null to only hash it, and returns the ContentHash of the normalized text.
+    static String normalize(Reader in, Writer out) throws IOException {
+        MessageDigest digest = ContentHash.newDigest();
+        Writer hashed = digestWriter(digest);
+        // Whitespace is held back until the next character shows whether it is kept
+        StringBuilder spaces = new StringBuilder();
+        int newlines = 0;
+        boolean started = false;
+        boolean afterCarriageReturn = false;
+        boolean first = true;
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (first) {
+                first = false;
+                if (c == '\uFEFF') continue;
+            }
+            if (c == '\n' && afterCarriageReturn) {
+                afterCarriageReturn = false;
+                continue;
+            }
+            afterCarriageReturn = c == '\r';
+            if (c == '\r' || c == '\n') {
+                newlines++;
+                spaces.setLength(0);
+                continue;
+            }
+            if (c == ' ' || c == '\t') {
+                spaces.append((char) c);
+                continue;
+            }
+            if (started) {
+                for (int i = 0; i < Math.min(newlines, 2); i++) {
+                    spaces.insert(0, '\n');
+                }
+                write(spaces, out, hashed);
+            }
+            started = true;
+            newlines = 0;
+            spaces.setLength(0);
+            spaces.append((char) c);
+            write(spaces, out, hashed);
+            spaces.setLength(0);
+        }
+        return finish(hashed, digest);
+    }
+
+    // ContentHash of the text read from in as it is, the same as normalize's for a normalized lesson
+    static String hash(Reader in) throws IOException {
+        MessageDigest digest = ContentHash.newDigest();
+        Writer hashed = digestWriter(digest);
+        char[] buffer = new char[8192];
+        int length;
+        while ((length = in.read(buffer)) >= 0) {
+            hashed.write(buffer, 0, length);
+        }
+        return finish(hashed, digest);
+    }
+
+    private static Writer digestWriter(MessageDigest digest) {
+        return new OutputStreamWriter(new DigestOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+        }, digest), StandardCharsets.UTF_8);
+    }
+
+    private static String finish(Writer hashed, MessageDigest digest) throws IOException {
+        hashed.flush();
+        // Same separator as ContentHash.sha256
+        digest.update((byte) 0);
+        return ContentHash.toHex(digest.digest());
+    }
+
+    private static void write(CharSequence text, Writer out, Writer hashed) throws IOException {
+        if (out != null) {
+            out.append(text);
+        }
+        hashed.append(text);
+    }
+}
@@ -1,5 +1,6 @@
 package com.gemma3n.smartlearning;
 
+import android.content.pm.ApplicationInfo;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -18,10 +19,12 @@ public class InteractionActivity extends AppCompatActivity {
 
     private InteractionViewModel interactionViewModel;
     private String fileContent;
+    private String filePath;
     private Button toggleModeButton;
     private LottieAnimationView llmLoadingIndicator;
     private TextView llmLoadingText;
     private LinearLayout llmLoadingContainer;
+    private TextView metricsOverlay;
     private static final String TAG = "InteractionActivity";
 
     @Override
@@ -36,8 +39,10 @@ public class InteractionActivity extends AppCompatActivity {
         llmLoadingIndicator = findViewById(R.id.llmLoadingIndicator);
         llmLoadingText = findViewById(R.id.llmLoadingText);
         llmLoadingContainer = findViewById(R.id.llmLoadingContainer);
+        metricsOverlay = findViewById(R.id.metricsOverlay);
 
         fileContent = getIntent().getStringExtra(DisplayTextActivity.EXTRA_FILE_CONTENT);
+        filePath = getIntent().getStringExtra(DisplayTextActivity.EXTRA_FILE_PATH);
         if (fileContent == null) {
             Toast.makeText(this, "Error: No file content provided.", Toast.LENGTH_LONG).show();
             finish();
@@ -46,8 +51,7 @@ public class InteractionActivity extends AppCompatActivity {
 
         interactionViewModel = new ViewModelProvider(this).get(InteractionViewModel.class);
 
-        //TODO: Replace adapter_model.safetensors with a flatbuffer converted file, the current version of mediapipe converter don't support gemma-3n
-        interactionViewModel.initializeLlm("/data/local/tmp/llm/gemma-3n-E2B-it-int4.task", "/data/local/tmp/llm/adapter_model.safetensors");
+        interactionViewModel.initializeLlm(LlmEngine.DEFAULT_MODEL_PATH, LlmEngine.DEFAULT_LORA_PATH);
 
 
         Log.d(TAG, "LLM Initialized");
@@ -59,7 +63,7 @@ public class InteractionActivity extends AppCompatActivity {
                 llmLoadingText.setVisibility(View.GONE);
                 llmLoadingContainer.setVisibility(View.GONE);
                 toggleModeButton.setVisibility(View.VISIBLE);
-                interactionViewModel.setFileContext(fileContent); // Set context once LLM is ready
+                interactionViewModel.setFileContext(fileContent, filePath); // Set context once LLM is ready
                 // Load initial fragment (e.g., Chat)
                 if (savedInstanceState == null) { // Load only if not restoring from a previous state
                     if (interactionViewModel.interactionMode.getValue() == InteractionModePojo.CHAT) {
@@ -93,6 +97,12 @@ public class InteractionActivity extends AppCompatActivity {
 
         toggleModeButton.setOnClickListener(v -> interactionViewModel.toggleMode());
 
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            metricsOverlay.setVisibility(View.VISIBLE);
+            metricsOverlay.setText(InferenceMetrics.getInstance().summarize().format());
+            InferenceMetrics.getInstance().getSummary().observe(this, summary -> metricsOverlay.setText(summary.format()));
+        }
+
         // Initial setup for loading UI
         if (interactionViewModel.isLlmReady.getValue() == null || !interactionViewModel.isLlmReady.getValue()) {
             llmLoadingContainer.setVisibility(View.VISIBLE);
@@ -9,6 +9,8 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 // POJO for Chat Message
 class ChatMessagePojo {
@@ -38,6 +40,7 @@ enum InteractionModePojo { CHAT, QUIZ }
 public class InteractionViewModel extends AndroidViewModel implements LlmHelper.LlmReadinessListener {
 
     private LlmHelper llmHelper; // To be initialized
+    private QuestionPrefetcher questionPrefetcher;
 
     private final MutableLiveData<InteractionModePojo> _interactionMode = new MutableLiveData<>(InteractionModePojo.CHAT);
     public LiveData<InteractionModePojo> interactionMode = _interactionMode;
@@ -50,12 +53,21 @@ public class InteractionViewModel extends AndroidViewModel implements LlmHelper.
     private final MutableLiveData<String> _currentQuestion = new MutableLiveData<>(null);
     public LiveData<String> currentQuestion = _currentQuestion;
 
+    // The question on screen with the model's reference answer
+    private QuizQuestion currentQuizQuestion = null;
+
     private final MutableLiveData<String> _quizResponse = new MutableLiveData<>(null);
     public LiveData<String> quizResponse = _quizResponse;
 
     private final MutableLiveData<String> _reformattedLesson = new MutableLiveData<>(null);
     public LiveData<String> reformattedLesson = _reformattedLesson;
 
+    private final MutableLiveData<String> _reformatProgress = new MutableLiveData<>(null);
+    public LiveData<String> reformatProgress = _reformatProgress;
+
+    private final MutableLiveData<String> _reformatError = new MutableLiveData<>(null);
+    public LiveData<String> reformatError = _reformatError;
+
     private final MutableLiveData<Boolean> _isLoading = new MutableLiveData<>(false);
     public LiveData<Boolean> isLoading = _isLoading;
 
@@ -63,18 +75,29 @@ public class InteractionViewModel extends AndroidViewModel implements LlmHelper.
     public LiveData<Boolean> isLlmReady = _isLlmReady;
 
     private String pendingFileContext = null;
+    private String pendingFilePath = null;
+    private String modelPath = LlmEngine.DEFAULT_MODEL_PATH;
+    private String pendingReformatText = null;
+    private String pendingReformatKey = null;
+    // The helper doesn't retry a failed load, so nothing waiting for onLlmReady would ever start
+    private boolean llmLoadFailed = false;
+    private final ReformatCache reformatCache;
+    private final ExecutorService cacheExecutor = Executors.newSingleThreadExecutor();
     private static final String TAG = "InteractionViewModel";
 
     public InteractionViewModel(@NonNull Application application) {
         super(application);
         // LlmHelper will be set via a setter or factory method after creation,
         // as it needs context and might be long-running to initialize.
+        reformatCache = new ReformatCache(application);
     }
 
     // Call this after ViewModel creation and before use
     public void initializeLlm(String modelAssetPath, String loraAssetPath) {
         if (llmHelper == null) {
+            this.modelPath = modelAssetPath;
             this.llmHelper = new LlmHelper(getApplication(), modelAssetPath, loraAssetPath, this);
+            this.questionPrefetcher = new QuestionPrefetcher(llmHelper);
         }
     }
 
@@ -82,17 +105,35 @@ public class InteractionViewModel extends AndroidViewModel implements LlmHelper.
     @Override
     public void onLlmReady(boolean isReady) {
         _isLlmReady.postValue(isReady);
+        llmLoadFailed = !isReady;
         if (isReady && pendingFileContext != null) {
-            setFileContext(pendingFileContext);
+            setFileContext(pendingFileContext, pendingFilePath);
             pendingFileContext = null; // Clear after use
+            pendingFilePath = null;
+        }
+        if (pendingReformatText != null) {
+            if (isReady) {
+                startReformat(pendingReformatText, pendingReformatKey);
+            } else {
+                failReformat();
+            }
+            pendingReformatText = null;
+            pendingReformatKey = null;
         }
     }
 
-    public void setFileContext(String content) {
+    // filePath is used to look up the lesson's chunks in the vector store, it can be null
+    public void setFileContext(String content, String filePath) {
         if (llmHelper != null && llmHelper.isLlmReady()) {
-            llmHelper.setContext(content);
+            llmHelper.setContext(content, filePath);
+            // Questions prefetched for another lesson are of no use
+            questionPrefetcher.invalidate();
+            if (_interactionMode.getValue() == InteractionModePojo.QUIZ) {
+                questionPrefetcher.fill();
+            }
         } else {
             pendingFileContext = content; // Store if LLM not ready yet
+            pendingFilePath = filePath;
         }
     }
 
@@ -100,6 +141,10 @@ public class InteractionViewModel extends AndroidViewModel implements LlmHelper.
     public void toggleMode() {
         if (_interactionMode.getValue() == InteractionModePojo.CHAT) {
             _interactionMode.setValue(InteractionModePojo.QUIZ);
+            if (questionPrefetcher != null && Boolean.TRUE.equals(_isLlmReady.getValue())) {
+                // Generate the first questions while the quiz screen shows up
+                questionPrefetcher.fill();
+            }
         } else {
             _interactionMode.setValue(InteractionModePojo.CHAT);
         }
@@ -119,12 +164,20 @@ public class InteractionViewModel extends AndroidViewModel implements LlmHelper.
         _isLoading.setValue(true);
         Log.d(TAG, "sendChatMessage: Loading set to true");
         if (llmHelper != null) {
-            llmHelper.generateChatResponse(message, response -> {
-                Log.d(TAG, "sendChatMessage: Response received");
-                removeLoadingMessage();
-                addChatMessage(response, false);
-                _isLoading.setValue(false);
-                Log.d(TAG, "sendChatMessage: Loading set to false");
+            llmHelper.generateChatResponseStreaming(message, new LlmHelper.ResponseListener() {
+                @Override
+                public void onPartialResponse(String responseSoFar) {
+                    // The loading bubble is replaced by the first tokens and then keeps growing
+                    replaceLastAiMessage(responseSoFar);
+                }
+
+                @Override
+                public void onResponseComplete(String response) {
+                    Log.d(TAG, "sendChatMessage: Response received");
+                    replaceLastAiMessage(response);
+                    _isLoading.setValue(false);
+                    Log.d(TAG, "sendChatMessage: Loading set to false");
+                }
             });
         } else {
             removeLoadingMessage();
@@ -154,6 +207,17 @@ public class InteractionViewModel extends AndroidViewModel implements LlmHelper.
         _chatMessages.setValue(updatedMessages);
     }
     
+    private void replaceLastAiMessage(String text) {
+        List<ChatMessagePojo> currentMessages = _chatMessages.getValue();
+        ArrayList<ChatMessagePojo> updatedMessages = currentMessages != null ? new ArrayList<>(currentMessages) : new ArrayList<>();
+        // Replace the loading message or the partial AI message, never a user message
+        if (!updatedMessages.isEmpty() && !updatedMessages.get(updatedMessages.size() - 1).isUser) {
+            updatedMessages.remove(updatedMessages.size() - 1);
+        }
+        updatedMessages.add(new ChatMessagePojo(text, false));
+        _chatMessages.setValue(updatedMessages);
+    }
+
     private void removeLoadingMessage() {
         List<ChatMessagePojo> currentMessages = _chatMessages.getValue();
         if (currentMessages != null && !currentMessages.isEmpty()) {
@@ -173,8 +237,10 @@ public class InteractionViewModel extends AndroidViewModel implements LlmHelper.
         _currentQuestion.setValue(null);
         _quizResponse.setValue(null);
         if (llmHelper != null) {
-            llmHelper.generateQuestionFromContext(question -> {
-                _currentQuestion.setValue(question);
+            // Served from the prefetch queue when a question is ready, the queue is refilled in the background
+            questionPrefetcher.takeQuestion(question -> {
+                currentQuizQuestion = question;
+                _currentQuestion.setValue(question != null ? question.question : "Could not generate question.");
                 _isLoading.setValue(false);
             });
         } else {
@@ -192,7 +258,8 @@ public class InteractionViewModel extends AndroidViewModel implements LlmHelper.
         _isLoading.setValue(true);
         _quizResponse.setValue(null);
         if (llmHelper != null) {
-            llmHelper.evaluateAnswer(userAnswer, response -> {
+            String referenceAnswer = currentQuizQuestion != null ? currentQuizQuestion.answer : null;
+            llmHelper.evaluateAnswer(question, referenceAnswer, userAnswer, response -> {
                 _quizResponse.setValue(response);
                 _isLoading.setValue(false);
             });
@@ -202,16 +269,56 @@ public class InteractionViewModel extends AndroidViewModel implements LlmHelper.
         }
     }
 
+    // A lesson reformatted before with the same model and prompt comes straight from the disk cache,
+    // otherwise the LLM is started if needed and the lesson reformatted
     public void reformatLesson(String lessonText) {
+        if (Boolean.TRUE.equals(_isLoading.getValue())) return;
         _isLoading.setValue(true);
-        if (llmHelper != null) {
-            llmHelper.reformatLesson(lessonText, reformattedLesson -> {
+        _reformatError.setValue(null);
+        String currentModelPath = modelPath;
+        cacheExecutor.execute(() -> {
+            String reformatModelPath = new ModelRouter(currentModelPath).route(ModelRouter.TaskType.REFORMAT).modelPath;
+            String cacheKey = ReformatCache.key(lessonText, LlmEngine.modelVersion(reformatModelPath));
+            String cachedLesson = reformatCache.get(cacheKey);
+            new android.os.Handler(getApplication().getMainLooper()).post(() -> {
+                if (cachedLesson != null) {
+                    _reformattedLesson.setValue(cachedLesson);
+                    _isLoading.setValue(false);
+                } else if (llmHelper != null && llmHelper.isLlmReady()) {
+                    startReformat(lessonText, cacheKey);
+                } else if (llmHelper != null && llmLoadFailed) {
+                    failReformat();
+                } else {
+                    pendingReformatText = lessonText; // Started once the LLM is ready
+                    pendingReformatKey = cacheKey;
+                    initializeLlm(LlmEngine.DEFAULT_MODEL_PATH, LlmEngine.DEFAULT_LORA_PATH);
+                }
+            });
+        });
+    }
+
+    private void failReformat() {
+        _reformatError.setValue("Could not load the model, the lesson was not reformatted.");
+        _isLoading.setValue(false);
+    }
+
+    private void startReformat(String lessonText, String cacheKey) {
+        llmHelper.reformatLesson(lessonText, new LessonReformatter.ReformatListener() {
+            @Override
+            public void onProgress(int sectionsDone, int totalSections) {
+                _reformatProgress.setValue("Reformatting section " + Math.min(sectionsDone + 1, totalSections) + " of " + totalSections + "...");
+            }
+
+            @Override
+            public void onComplete(String reformattedLesson) {
+                _reformatProgress.setValue(null);
                 _reformattedLesson.setValue(reformattedLesson);
                 _isLoading.setValue(false);
-            });
-        } else {
-            _isLoading.setValue(false);
-        }
+                if (reformattedLesson != null && !reformattedLesson.isEmpty()) {
+                    cacheExecutor.execute(() -> reformatCache.put(cacheKey, reformattedLesson));
+                }
+            }
+        });
     }
 
     public void clearQuiz() {
@@ -226,5 +333,6 @@ public class InteractionViewModel extends AndroidViewModel implements LlmHelper.
             Log.d(TAG, "Clearing LLM resources.");
             llmHelper.close();
         }
+        cacheExecutor.shutdown();
     }
 }
\ No newline at end of file
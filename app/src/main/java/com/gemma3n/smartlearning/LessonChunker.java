@@ -0,0 +1,324 @@
+package com.gemma3n.smartlearning;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.ToIntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits a lesson into chunks for the embedding model. Chunks are sized in tokens to fit the
+ * model's input and cut on natural boundaries: a markdown heading starts a new chunk, paragraphs
+ * and sentences are kept whole, and only a sentence longer than a chunk is cut between words.
+ * Consecutive chunks of a section share up to overlapTokens of text, so a passage cut at a
+ * boundary is still found whole in one of them. Every chunk keeps its offsets in the lesson.
+ * The lesson is read as a stream and chunks are made as they are asked for, so only about a chunk
+ * and a line of text are held at a time, however long the lesson. LessonSectioner cuts lessons
+ * for reformatting with it too, with the model's token counter and no overlap.
+ */
+public class LessonChunker {
+    // Gecko takes 256 tokens, the estimate of approximateTokenCount leaves some room for its errors
+    public static final int DEFAULT_MAX_TOKENS = 224;
+    public static final int DEFAULT_OVERLAP_TOKENS = 32;
+    // Longer lines, e.g. a transcript without line breaks, are read in pieces of this size
+    private static final int MAX_SEGMENT_CHARS = 4096;
+
+    private static final Pattern SENTENCE_END = Pattern.compile("(?<=[.!?])\\s+");
+    private static final Pattern WORD = Pattern.compile("\\S+");
+    private static final Pattern TOKEN_PIECE = Pattern.compile("[\\p{L}\\p{N}]+|[^\\s\\p{L}\\p{N}]");
+
+    public static class Chunk {
+        public final String text;
+        // Offsets of the chunk in the lesson text, end exclusive
+        public final int start;
+        public final int end;
+        public final int tokens;
+
+        Chunk(String text, int start, int end, int tokens) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            this.tokens = tokens;
+        }
+    }
+
+    // A sentence, a heading or a piece of a long sentence, never cut. startsSection is set on headings.
+    // gapBefore is the whitespace between the previous unit and this one.
+    private static class Unit {
+        final String gapBefore;
+        final String text;
+        final int start;
+        final int tokens;
+        final boolean startsSection;
+
+        Unit(String gapBefore, String text, int start, int tokens, boolean startsSection) {
+            this.gapBefore = gapBefore;
+            this.text = text;
+            this.start = start;
+            this.tokens = tokens;
+            this.startsSection = startsSection;
+        }
+
+        int end() {
+            return start + text.length();
+        }
+    }
+
+    private final int maxTokens;
+    private final int overlapTokens;
+    private final ToIntFunction<String> tokenCounter;
+
+    public LessonChunker() {
+        this(DEFAULT_MAX_TOKENS, DEFAULT_OVERLAP_TOKENS, LessonChunker::approximateTokenCount);
+    }
+
+    public LessonChunker(int maxTokens, int overlapTokens, ToIntFunction<String> tokenCounter) {
+        if (overlapTokens >= maxTokens / 2) {
+            throw new IllegalArgumentException("Overlap must be less than half of the chunk size");
+        }
+        this.maxTokens = maxTokens;
+        this.overlapTokens = overlapTokens;
+        this.tokenCounter = tokenCounter;
+    }
+
+    public List<Chunk> chunk(String text) {
+        List<Chunk> chunks = new ArrayList<>();
+        chunks(new StringReader(text)).forEachRemaining(chunks::add);
+        return chunks;
+    }
+
+    // Chunks of the lesson read from reader, made one at a time as the iterator is advanced. The reader is
+    // read a character at a time, pass a buffered one, and it is left open. A read error is thrown from the iterator as an UncheckedIOException.
+    public Iterator<Chunk> chunks(Reader reader) {
+        return new ChunkIterator(reader);
+    }
+
+    private class ChunkIterator implements Iterator<Chunk> {
+        private final Reader reader;
+        private final char[] buffer = new char[MAX_SEGMENT_CHARS];
+        private final ArrayDeque<Chunk> ready = new ArrayDeque<>();
+        // Text read but not made into units yet, starting at pendingStart in the lesson
+        private final StringBuilder pending = new StringBuilder();
+        private int pendingStart = 0;
+        // Whitespace between the last unit and the next one
+        private final StringBuilder gap = new StringBuilder();
+        private boolean atLineStart = true;
+        private boolean endOfText = false;
+        // Units of the chunk being filled
+        private List<Unit> current = new ArrayList<>();
+        private int currentTokens = 0;
+
+        ChunkIterator(Reader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (ready.isEmpty() && !endOfText) {
+                    readSegment();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return !ready.isEmpty();
+        }
+
+        @Override
+        public Chunk next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return ready.poll();
+        }
+
+        // Reads up to the end of the line, or MAX_SEGMENT_CHARS of it, and makes units of what is complete
+        private void readSegment() throws IOException {
+            int length = 0;
+            boolean lineEnded = false;
+            while (length < buffer.length) {
+                int c = reader.read();
+                if (c < 0) break;
+                buffer[length++] = (char) c;
+                if (c == '\n') {
+                    lineEnded = true;
+                    break;
+                }
+            }
+            if (length == 0) {
+                endOfText = true;
+                emit(pending.length(), false);
+                flushChunk();
+                return;
+            }
+            String segment = new String(buffer, 0, length);
+            String line = segment.trim();
+            boolean lineStart = atLineStart;
+            atLineStart = lineEnded;
+            if (lineStart && (line.isEmpty() || line.startsWith("#"))) {
+                // A blank line or a heading ends the paragraph
+                emit(pending.length(), false);
+                if (!line.isEmpty()) {
+                    int headingEnd = segment.lastIndexOf(line) + line.length();
+                    pending.append(segment, 0, headingEnd);
+                    emit(pending.length(), true);
+                    segment = segment.substring(headingEnd);
+                }
+                pending.append(segment);
+                emit(pending.length(), false);
+                return;
+            }
+            pending.append(segment);
+            // Complete sentences become units, the unfinished one waits for the rest of the paragraph
+            Matcher boundary = SENTENCE_END.matcher(pending);
+            int sentencesEnd = 0;
+            while (boundary.find()) {
+                sentencesEnd = boundary.end();
+            }
+            if (sentencesEnd > 0) {
+                emit(sentencesEnd, false);
+            }
+            if (tokenCounter.applyAsInt(pending.toString()) > maxTokens) {
+                // A sentence longer than a chunk, its words that fill chunks are cut off already
+                cutWords();
+            }
+        }
+
+        // Makes units of the first length chars of pending, by sentence
+        private void emit(int length, boolean startsSection) {
+            if (length == 0) return;
+            String span = pending.substring(0, length);
+            Matcher boundary = SENTENCE_END.matcher(span);
+            int sentenceStart = 0;
+            while (!startsSection && boundary.find()) {
+                addSpan(span.substring(sentenceStart, boundary.end()), pendingStart + sentenceStart, false);
+                sentenceStart = boundary.end();
+            }
+            addSpan(span.substring(sentenceStart), pendingStart + sentenceStart, startsSection);
+            pending.delete(0, length);
+            pendingStart += length;
+        }
+
+        // Adds the span as a unit without its surrounding whitespace, cut between words if it doesn't fit in a chunk
+        private void addSpan(String span, int start, boolean startsSection) {
+            int a = 0;
+            int b = span.length();
+            while (a < b && Character.isWhitespace(span.charAt(a))) a++;
+            while (b > a && Character.isWhitespace(span.charAt(b - 1))) b--;
+            gap.append(span, 0, a);
+            if (a < b) {
+                String text = span.substring(a, b);
+                int tokens = tokenCounter.applyAsInt(text);
+                if (tokens <= maxTokens) {
+                    addUnit(text, start + a, tokens, startsSection);
+                } else {
+                    addWords(text, start + a, startsSection, true);
+                }
+            }
+            gap.append(span, b, span.length());
+        }
+
+        // Cuts the words at the start of pending that fill whole chunks into units, the rest stays pending
+        private void cutWords() {
+            int keptFrom = addWords(pending.toString(), pendingStart, false, false);
+            pending.delete(0, keptFrom);
+            pendingStart += keptFrom;
+        }
+
+        // Adds the words of text as units of up to maxTokens. Unless all is set, the last unit isn't added and
+        // the index it starts at in text is returned.
+        private int addWords(String text, int start, boolean startsSection, boolean all) {
+            Matcher word = WORD.matcher(text);
+            int pieceStart = -1;
+            int pieceEnd = 0;
+            int pieceTokens = 0;
+            int gapStart = 0;
+            while (word.find()) {
+                int wordTokens = tokenCounter.applyAsInt(word.group());
+                if (pieceStart >= 0 && pieceTokens + wordTokens > maxTokens) {
+                    gap.append(text, gapStart, pieceStart);
+                    addUnit(text.substring(pieceStart, pieceEnd), start + pieceStart, pieceTokens, startsSection);
+                    startsSection = false;
+                    gapStart = pieceEnd;
+                    pieceStart = -1;
+                    pieceTokens = 0;
+                }
+                if (pieceStart < 0) pieceStart = word.start();
+                pieceEnd = word.end();
+                pieceTokens += wordTokens;
+            }
+            if (!all) {
+                return gapStart;
+            }
+            if (pieceStart >= 0) {
+                gap.append(text, gapStart, pieceStart);
+                addUnit(text.substring(pieceStart, pieceEnd), start + pieceStart, pieceTokens, startsSection);
+            }
+            return text.length();
+        }
+
+        private void addUnit(String text, int start, int tokens, boolean startsSection) {
+            Unit unit = new Unit(gap.toString(), text, start, tokens, startsSection);
+            gap.setLength(0);
+            // A heading starts a new chunk once the current one is reasonably full
+            boolean full = currentTokens + unit.tokens > maxTokens
+                    || (unit.startsSection && currentTokens > maxTokens / 2);
+            if (full && !current.isEmpty()) {
+                List<Unit> previous = current;
+                flushChunk();
+                // Overlap only within a section, the text before a heading is about something else
+                current = unit.startsSection ? new ArrayList<>() : overlap(previous, maxTokens - unit.tokens);
+                for (Unit kept : current) {
+                    currentTokens += kept.tokens;
+                }
+            }
+            current.add(unit);
+            currentTokens += unit.tokens;
+        }
+
+        private void flushChunk() {
+            if (current.isEmpty()) return;
+            StringBuilder text = new StringBuilder(current.get(0).text);
+            for (int i = 1; i < current.size(); i++) {
+                text.append(current.get(i).gapBefore).append(current.get(i).text);
+            }
+            Unit first = current.get(0);
+            Unit last = current.get(current.size() - 1);
+            ready.add(new Chunk(text.toString(), first.start, last.end(), currentTokens));
+            current = new ArrayList<>();
+            currentTokens = 0;
+        }
+    }
+
+    // Trailing units of the chunk worth up to overlapTokens, and no more than room
+    private List<Unit> overlap(List<Unit> chunkUnits, int room) {
+        List<Unit> kept = new ArrayList<>();
+        int tokens = 0;
+        for (int i = chunkUnits.size() - 1; i > 0; i--) {
+            Unit unit = chunkUnits.get(i);
+            if (tokens + unit.tokens > Math.min(overlapTokens, room)) break;
+            kept.add(0, unit);
+            tokens += unit.tokens;
+        }
+        return kept;
+    }
+
+    // Estimate of the SentencePiece tokens of the text, without loading the tokenizer: a token per
+    // punctuation mark and per word of up to four letters, longer words a token per four letters.
+    // Errs on the high side for English prose.
+    public static int approximateTokenCount(String text) {
+        int tokens = 0;
+        Matcher piece = TOKEN_PIECE.matcher(text);
+        while (piece.find()) {
+            tokens += Math.max(1, (piece.end() - piece.start() + 3) / 4);
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,105 @@
+package com.gemma3n.smartlearning;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.ai.edge.localagents.rag.models.EmbedData;
+import com.google.ai.edge.localagents.rag.models.EmbeddingRequest;
+import com.google.ai.edge.localagents.rag.models.GeckoEmbeddingModel;
+import com.google.common.collect.ImmutableList;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Application scoped access to the Gecko embedding model and the lesson vector store,
+ * shared by the import screen and the chat retrieval.
+ */
+public class LessonIndex {
+    private static final String TAG = "LessonIndex";
+    private static final String GECKO_MODEL_PATH = "/data/local/tmp/llm/Gecko_256_quant.tflite";
+    private static final String SENTENCE_PIECE_MODEL_PATH = "/data/local/tmp/llm/sentencepiece.model";
+    // Store of the localagents SqliteVectorStore used before, which can't delete rows. Its lessons are indexed
+    // again into the LessonVectorStore from their files.
+    private static final String LEGACY_DATABASE = "text_search.db";
+    // Identical chunks of a lesson are returned once, ask for a few more in case
+    private static final int CANDIDATES_PER_RESULT = 2;
+    private static LessonIndex instance;
+
+    private final GeckoEmbeddingModel embeddingModel;
+    private final LessonVectorStore vectorStore;
+
+    private LessonIndex(Context context) {
+        embeddingModel = new GeckoEmbeddingModel(GECKO_MODEL_PATH, Optional.of(SENTENCE_PIECE_MODEL_PATH), true);
+        vectorStore = new LessonVectorStore(context);
+
+        File legacyDatabase = new File(context.getFilesDir(), LEGACY_DATABASE);
+        if (legacyDatabase.exists() && !legacyDatabase.delete()) {
+            Log.w(TAG, "Failed to delete " + legacyDatabase.getAbsolutePath());
+        }
+    }
+
+    public static synchronized LessonIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new LessonIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public GeckoEmbeddingModel getEmbeddingModel() {
+        return embeddingModel;
+    }
+
+    public LessonVectorStore getVectorStore() {
+        return vectorStore;
+    }
+
+    // Embedding of a question, to search the lesson chunks with. Blocks, call it off the main thread.
+    public ImmutableList<Float> embedQuery(String query) throws ExecutionException, InterruptedException {
+        EmbedData<String> embedData = EmbedData.create(query, EmbedData.TaskType.RETRIEVAL_QUERY);
+        EmbeddingRequest<String> embeddingRequest = EmbeddingRequest.create(Collections.singletonList(embedData));
+        return embeddingModel.getEmbeddings(embeddingRequest).get();
+    }
+
+    // Embeddings of passages, in one batch, to compare with a query embedding. Blocks, call it off the main thread.
+    public ImmutableList<ImmutableList<Float>> embedDocuments(List<String> documents) throws ExecutionException, InterruptedException {
+        List<EmbedData<String>> embedDataList = new ArrayList<>();
+        for (String document : documents) {
+            embedDataList.add(EmbedData.create(document, EmbedData.TaskType.RETRIEVAL_DOCUMENT));
+        }
+        return embeddingModel.getBatchEmbeddings(EmbeddingRequest.create(embedDataList)).get();
+    }
+
+    // Returns the text of the chunks of filePath closest to the query. Blocks, call it off the main thread.
+    public List<String> retrieveChunks(String query, String filePath, int topK) throws ExecutionException, InterruptedException {
+        return retrieveChunks(embedQuery(query), filePath, topK);
+    }
+
+    // Same as above, for a query that was already embedded with embedQuery
+    public List<String> retrieveChunks(ImmutableList<Float> embedding, String filePath, int topK) {
+        List<String> chunks = new ArrayList<>();
+        for (LessonVectorStore.Match match : retrieve(embedding, filePath, topK)) {
+            chunks.add(match.text);
+        }
+        return chunks;
+    }
+
+    // The chunks of filePath closest to the embedded query, closest first, each text once
+    public List<LessonVectorStore.Match> retrieve(ImmutableList<Float> embedding, String filePath, int topK) {
+        List<LessonVectorStore.Match> matches = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        for (LessonVectorStore.Match match : vectorStore.nearest(embedding, filePath, topK * CANDIDATES_PER_RESULT, 0.0f)) {
+            if (match.text.isEmpty() || texts.contains(match.text)) {
+                continue;
+            }
+            matches.add(match);
+            texts.add(match.text);
+            if (matches.size() == topK) break;
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,170 @@
+package com.gemma3n.smartlearning;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.mediapipe.tasks.genai.llminference.LlmInference;
+import com.google.mediapipe.tasks.genai.llminference.LlmInferenceSession;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Reformats a lesson section by section, so lessons larger than the context window work and
+ * progress can be reported. Each section is its own batch request, chat and quiz requests can
+ * run in between. Finished sections are written under filesDir/reformat_progress/<key>, keyed
+ * like the reformat cache by the lesson, the model, the prompt version and the section size, so a
+ * cancelled or crashed run of the same lesson picks up at the first missing section and a run with
+ * another model or prompt starts over.
+ */
+public class LessonReformatter {
+    private static final String TAG = "LessonReformatter";
+    // Leaves room in the 4096 token window for the instructions and a reformatted section that is a bit longer
+    private static final int MAX_SECTION_TOKENS = 1200;
+    private static final String PROGRESS_DIR = "reformat_progress";
+    // Bump when the prompt changes, cached reformats of the old prompt are then ignored
+    public static final int PROMPT_VERSION = 2;
+
+    // Callbacks are delivered on the main thread
+    public interface ReformatListener {
+        void onProgress(int sectionsDone, int totalSections);
+        void onComplete(String reformattedLesson);
+    }
+
+    private final Context context;
+    private final LlmEngine llmEngine;
+    private final Object owner;
+
+    public LessonReformatter(Context context, LlmEngine llmEngine, Object owner) {
+        this.context = context.getApplicationContext();
+        this.llmEngine = llmEngine;
+        this.owner = owner;
+    }
+
+    public void reformat(LlmInferenceSession.LlmInferenceSessionOptions sessionOptions, String lessonText, ReformatListener listener) {
+        llmEngine.getScheduler().submit(InferenceScheduler.Priority.BATCH, owner, token -> {
+            File progressDir = new File(new File(context.getFilesDir(), PROGRESS_DIR), progressKey(lessonText));
+            List<String> sections;
+            try {
+                LlmInference llmInference = llmEngine.ensureLoaded();
+                sections = LessonSectioner.split(lessonText, MAX_SECTION_TOKENS, llmInference::sizeInTokens);
+            } catch (Exception e) {
+                Log.e(TAG, "Error splitting the lesson: " + e.getMessage(), e);
+                post(() -> listener.onComplete(null));
+                return;
+            }
+            if (sections.isEmpty() || (!progressDir.exists() && !progressDir.mkdirs())) {
+                Log.e(TAG, "Nothing to reformat or no progress directory.");
+                post(() -> listener.onComplete(null));
+                return;
+            }
+            Log.d(TAG, "Reformatting " + sections.size() + " sections.");
+            reformatSection(sessionOptions, sections, 0, progressDir, listener);
+        });
+    }
+
+    private void reformatSection(LlmInferenceSession.LlmInferenceSessionOptions sessionOptions,
+                                 List<String> sections, int index, File progressDir, ReformatListener listener) {
+        // Sections done by an earlier run are kept
+        int next = index;
+        while (next < sections.size() && sectionFile(progressDir, next).exists()) {
+            next++;
+        }
+        int sectionsDone = next;
+        post(() -> listener.onProgress(sectionsDone, sections.size()));
+        if (next == sections.size()) {
+            finish(sections.size(), progressDir, listener);
+            return;
+        }
+
+        int sectionIndex = next;
+        llmEngine.getScheduler().submit(InferenceScheduler.Priority.BATCH, owner, token -> {
+            LlmInferenceSession session = null;
+            try {
+                // The model may have been unloaded between two sections
+                session = llmEngine.createSession(llmEngine.ensureLoaded(), sessionOptions);
+                session.addQueryChunk(buildPrompt(sections.get(sectionIndex), sectionIndex, sections.size()));
+                LlmInferenceSession runningSession = session;
+                token.setOnCancel(runningSession::cancelGenerateResponseAsync);
+                String result = session.generateResponseAsync((partialResult, done) -> {}).get();
+                if (token.isCancelled()) {
+                    Log.d(TAG, "Reformat cancelled at section " + sectionIndex + ", progress is kept.");
+                    return;
+                }
+                AtomicFiles.write(sectionFile(progressDir, sectionIndex), result != null ? result.trim() : "");
+            } catch (Exception e) {
+                Log.e(TAG, "Error reformatting section " + sectionIndex + ": " + e.getMessage(), e);
+                if (!token.isCancelled()) {
+                    post(() -> listener.onComplete(null));
+                }
+                return;
+            } finally {
+                token.setOnCancel(null);
+                if (session != null) {
+                    session.close();
+                }
+            }
+            reformatSection(sessionOptions, sections, sectionIndex + 1, progressDir, listener);
+        });
+    }
+
+    private void finish(int sectionCount, File progressDir, ReformatListener listener) {
+        StringBuilder lesson = new StringBuilder();
+        try {
+            for (int i = 0; i < sectionCount; i++) {
+                if (lesson.length() > 0) {
+                    lesson.append("\n\n");
+                }
+                lesson.append(new String(Files.readAllBytes(sectionFile(progressDir, i).toPath()), StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading reformatted sections: " + e.getMessage(), e);
+            post(() -> listener.onComplete(null));
+            return;
+        }
+        deleteProgress(progressDir);
+        String reformattedLesson = lesson.toString();
+        post(() -> listener.onComplete(reformattedLesson));
+    }
+
+    private static String buildPrompt(String section, int index, int total) {
+        String position = total == 1 ? "" : "This is part " + (index + 1) + " of " + total + " of a longer lesson. ";
+        String title = index == 0 ? "1. Create a main title using #\n" : "1. Do not add a main title, start with ## sections\n";
+        return "Reformat this educational content into clear, structured markdown. " + position + "\n\n" +
+                title +
+                "2. Use ## for main sections\n" +
+                "3. Use ### for subsections\n" +
+                "4. Make key terms and concepts **bold**\n" +
+                "5. Use bullet points (*) for lists\n" +
+                "6. Keep paragraphs short (2-3 sentences max)\n" +
+                "7. Organize information logically\n" +
+                "8. Make it easy to read and study\n\n" +
+                "Content to reformat:\n" + section;
+    }
+
+    private String progressKey(String lessonText) {
+        return ContentHash.sha256(lessonText, LlmEngine.modelVersion(llmEngine.getModelPath()),
+                String.valueOf(PROMPT_VERSION), String.valueOf(MAX_SECTION_TOKENS));
+    }
+
+    private static File sectionFile(File progressDir, int index) {
+        return new File(progressDir, "section_" + index + ".md");
+    }
+
+    private static void deleteProgress(File progressDir) {
+        File[] files = progressDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        progressDir.delete();
+    }
+
+    private void post(Runnable callback) {
+        new android.os.Handler(context.getMainLooper()).post(callback);
+    }
+}
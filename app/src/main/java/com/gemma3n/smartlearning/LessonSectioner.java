@@ -0,0 +1,23 @@
+package com.gemma3n.smartlearning;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Splits a lesson into sections that each fit a token budget, cutting on natural boundaries:
+ * markdown headings first, then sentences, and only as a last resort between words. Cut the same
+ * way as the embedding chunks, see LessonChunker, without overlap.
+ */
+public final class LessonSectioner {
+
+    private LessonSectioner() {}
+
+    public static List<String> split(String text, int maxSectionTokens, ToIntFunction<String> tokenCounter) {
+        List<String> sections = new ArrayList<>();
+        for (LessonChunker.Chunk chunk : new LessonChunker(maxSectionTokens, 0, tokenCounter).chunk(text)) {
+            sections.add(chunk.text);
+        }
+        return sections;
+    }
+}
@@ -0,0 +1,291 @@
+package com.gemma3n.smartlearning;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chunk embeddings of the imported lessons, with the manifest that keeps them in step with the
+ * lesson files: the content hash each lesson was last indexed at, and for every chunk its hash and
+ * row id. Re-indexing a changed lesson embeds only the chunks whose hash is new and deletes the
+ * rows of the chunks that are gone. Lessons are small, nearest neighbours are found by scanning
+ * the chunks of one lesson, or of all of them for the file search.
+ * Chunks are written with insertAll, many rows per transaction through one prepared statement:
+ * a transaction per row costs a commit and a sync to disk each, which is what limits indexing.
+ * Blocks on SQLite, call it off the main thread.
+ */
+public class LessonVectorStore extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "lesson_index.db";
+    // 2: structure aware chunks with their offsets
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String LESSONS_TABLE = "lessons";
+    private static final String CHUNKS_TABLE = "chunks";
+    private static final String COLUMN_ID = "id";
+    private static final String COLUMN_FILE_NAME = "file_name";
+    private static final String COLUMN_CONTENT_HASH = "content_hash";
+    private static final String COLUMN_CHUNK_HASH = "chunk_hash";
+    private static final String COLUMN_TEXT = "text";
+    private static final String COLUMN_START_OFFSET = "start_offset";
+    private static final String COLUMN_END_OFFSET = "end_offset";
+    private static final String COLUMN_EMBEDDING = "embedding";
+    // Rows committed together by insertAll
+    public static final int DEFAULT_INSERT_BATCH_SIZE = 128;
+
+    public static class Match {
+        // Row id of the chunk, kept while the chunk stays in the lesson
+        public final long id;
+        public final String filePath;
+        public final String text;
+        // Offsets of the chunk in the lesson, end exclusive
+        public final int startOffset;
+        public final int endOffset;
+        public final float similarity;
+
+        Match(long id, String filePath, String text, int startOffset, int endOffset, float similarity) {
+            this.id = id;
+            this.filePath = filePath;
+            this.text = text;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.similarity = similarity;
+        }
+    }
+
+    public static class Row {
+        final String filePath;
+        final String chunkHash;
+        final String text;
+        final int startOffset;
+        final int endOffset;
+        final List<Float> embedding;
+
+        public Row(String filePath, String chunkHash, String text, int startOffset, int endOffset, List<Float> embedding) {
+            this.filePath = filePath;
+            this.chunkHash = chunkHash;
+            this.text = text;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.embedding = embedding;
+        }
+    }
+
+    private volatile int insertBatchSize = DEFAULT_INSERT_BATCH_SIZE;
+
+    public LessonVectorStore(Context context) {
+        this(context, DATABASE_NAME);
+    }
+
+    // A store in another database, for the benchmarks
+    LessonVectorStore(Context context, String databaseName) {
+        super(context, databaseName, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + LESSONS_TABLE + " (" +
+                COLUMN_FILE_NAME + " TEXT PRIMARY KEY, " +
+                COLUMN_CONTENT_HASH + " TEXT NOT NULL)");
+        db.execSQL("CREATE TABLE " + CHUNKS_TABLE + " (" +
+                COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                COLUMN_FILE_NAME + " TEXT NOT NULL, " +
+                COLUMN_CHUNK_HASH + " TEXT NOT NULL, " +
+                COLUMN_TEXT + " TEXT NOT NULL, " +
+                COLUMN_START_OFFSET + " INTEGER NOT NULL, " +
+                COLUMN_END_OFFSET + " INTEGER NOT NULL, " +
+                COLUMN_EMBEDDING + " BLOB NOT NULL)");
+        db.execSQL("CREATE INDEX chunks_file_name ON " + CHUNKS_TABLE + " (" + COLUMN_FILE_NAME + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Only derived data, the lessons are indexed again from their files on the next sync
+        db.execSQL("DROP TABLE IF EXISTS " + CHUNKS_TABLE);
+        db.execSQL("DROP TABLE IF EXISTS " + LESSONS_TABLE);
+        onCreate(db);
+    }
+
+    // Content hash the lesson was last indexed at, null if it never was
+    public String getContentHash(String filePath) {
+        try (Cursor cursor = getReadableDatabase().query(LESSONS_TABLE, new String[]{COLUMN_CONTENT_HASH},
+                COLUMN_FILE_NAME + " = ?", new String[]{filePath}, null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+    }
+
+    public void setContentHash(String filePath, String contentHash) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_FILE_NAME, filePath);
+        values.put(COLUMN_CONTENT_HASH, contentHash);
+        getWritableDatabase().insertWithOnConflict(LESSONS_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public List<String> getLessonFiles() {
+        List<String> files = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(LESSONS_TABLE, new String[]{COLUMN_FILE_NAME},
+                null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                files.add(cursor.getString(0));
+            }
+        }
+        return files;
+    }
+
+    // Row ids of the lesson's chunks by chunk hash, a chunk that appears twice in the lesson has two rows
+    public Map<String, List<Long>> getChunkRows(String filePath) {
+        Map<String, List<Long>> rows = new HashMap<>();
+        try (Cursor cursor = getReadableDatabase().query(CHUNKS_TABLE, new String[]{COLUMN_ID, COLUMN_CHUNK_HASH},
+                COLUMN_FILE_NAME + " = ?", new String[]{filePath}, null, null, null)) {
+            while (cursor.moveToNext()) {
+                rows.computeIfAbsent(cursor.getString(1), hash -> new ArrayList<>()).add(cursor.getLong(0));
+            }
+        }
+        return rows;
+    }
+
+    public void setInsertBatchSize(int insertBatchSize) {
+        if (insertBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.insertBatchSize = insertBatchSize;
+    }
+
+    public int getInsertBatchSize() {
+        return insertBatchSize;
+    }
+
+    // Returns the row id of the chunk. Commits on its own, prefer insertAll for more than a few rows.
+    public long insert(String filePath, String chunkHash, String text, int startOffset, int endOffset, List<Float> embedding) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_FILE_NAME, filePath);
+        values.put(COLUMN_CHUNK_HASH, chunkHash);
+        values.put(COLUMN_TEXT, text);
+        values.put(COLUMN_START_OFFSET, startOffset);
+        values.put(COLUMN_END_OFFSET, endOffset);
+        values.put(COLUMN_EMBEDDING, toBlob(embedding));
+        return getWritableDatabase().insert(CHUNKS_TABLE, null, values);
+    }
+
+    // Inserts the rows insertBatchSize per transaction, binding each one to the same compiled statement.
+    // Rows of a failed transaction are rolled back and the exception is thrown, earlier batches stay.
+    public void insertAll(List<Row> rows) {
+        if (rows.isEmpty()) return;
+        SQLiteDatabase db = getWritableDatabase();
+        int batchSize = insertBatchSize;
+        try (SQLiteStatement statement = db.compileStatement("INSERT INTO " + CHUNKS_TABLE + " (" +
+                COLUMN_FILE_NAME + ", " + COLUMN_CHUNK_HASH + ", " + COLUMN_TEXT + ", " +
+                COLUMN_START_OFFSET + ", " + COLUMN_END_OFFSET + ", " + COLUMN_EMBEDDING + ") VALUES (?, ?, ?, ?, ?, ?)")) {
+            for (int from = 0; from < rows.size(); from += batchSize) {
+                db.beginTransaction();
+                try {
+                    for (Row row : rows.subList(from, Math.min(from + batchSize, rows.size()))) {
+                        statement.clearBindings();
+                        statement.bindString(1, row.filePath);
+                        statement.bindString(2, row.chunkHash);
+                        statement.bindString(3, row.text);
+                        statement.bindLong(4, row.startOffset);
+                        statement.bindLong(5, row.endOffset);
+                        statement.bindBlob(6, toBlob(row.embedding));
+                        statement.executeInsert();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }
+    }
+
+    // Kept chunks move when the text before them changes
+    // offsetsByRowId holds the start and end offset of each row
+    public void updateOffsets(Map<Long, int[]> offsetsByRowId) {
+        if (offsetsByRowId.isEmpty()) return;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<Long, int[]> entry : offsetsByRowId.entrySet()) {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_START_OFFSET, entry.getValue()[0]);
+                values.put(COLUMN_END_OFFSET, entry.getValue()[1]);
+                db.update(CHUNKS_TABLE, values, COLUMN_ID + " = ?", new String[]{Long.toString(entry.getKey())});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void deleteRows(List<Long> rowIds) {
+        if (rowIds.isEmpty()) return;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (long rowId : rowIds) {
+                db.delete(CHUNKS_TABLE, COLUMN_ID + " = ?", new String[]{Long.toString(rowId)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Forgets a lesson whose file was deleted
+    public void removeLesson(String filePath) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(CHUNKS_TABLE, COLUMN_FILE_NAME + " = ?", new String[]{filePath});
+            db.delete(LESSONS_TABLE, COLUMN_FILE_NAME + " = ?", new String[]{filePath});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // The topK chunks closest to the query with a similarity of at least minSimilarity, closest first.
+    // filePath limits the search to one lesson, null searches all of them.
+    public List<Match> nearest(List<Float> query, String filePath, int topK, float minSimilarity) {
+        float[] queryVector = VectorMath.toArray(query);
+        String selection = filePath != null ? COLUMN_FILE_NAME + " = ?" : null;
+        String[] selectionArgs = filePath != null ? new String[]{filePath} : null;
+        List<Match> matches = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().query(CHUNKS_TABLE,
+                new String[]{COLUMN_ID, COLUMN_FILE_NAME, COLUMN_TEXT, COLUMN_START_OFFSET, COLUMN_END_OFFSET, COLUMN_EMBEDDING},
+                selection, selectionArgs, null, null, null)) {
+            while (cursor.moveToNext()) {
+                float similarity = VectorMath.cosineSimilarity(queryVector, fromBlob(cursor.getBlob(5)));
+                if (similarity >= minSimilarity) {
+                    matches.add(new Match(cursor.getLong(0), cursor.getString(1), cursor.getString(2), cursor.getInt(3),
+                            cursor.getInt(4), similarity));
+                }
+            }
+        }
+        Collections.sort(matches, (a, b) -> Float.compare(b.similarity, a.similarity));
+        return matches.size() > topK ? new ArrayList<>(matches.subList(0, topK)) : matches;
+    }
+
+    static byte[] toBlob(List<Float> embedding) {
+        ByteBuffer buffer = ByteBuffer.allocate(embedding.size() * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (Float value : embedding) {
+            buffer.putFloat(value);
+        }
+        return buffer.array();
+    }
+
+    static float[] fromBlob(byte[] blob) {
+        float[] embedding = new float[blob.length / Float.BYTES];
+        ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(embedding);
+        return embedding;
+    }
+}
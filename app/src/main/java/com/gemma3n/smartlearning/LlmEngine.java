@@ -0,0 +1,390 @@
+package com.gemma3n.smartlearning;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.mediapipe.tasks.genai.llminference.LlmInference;
+import com.google.mediapipe.tasks.genai.llminference.LlmInferenceSession;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Application scoped holder of the LlmInference engine of one model file.
+ * The model is loaded once and shared by every screen, each screen opens its own
+ * LlmInferenceSession on top of it. The engine is closed when the last user releases it.
+ * Engines of different models share one inference thread, so they never compute at the same time.
+ * While in use it can still be unloaded, after IDLE_UNLOAD_MILLIS without requests or when
+ * Android reports memory pressure, so the process isn't killed for holding the model.
+ * Users are told to drop their sessions first and the next ensureLoaded() loads it again.
+ * LoRA adapters are applied per session on top of the one loaded model, switching subjects
+ * never loads the base weights again.
+ */
+public class LlmEngine {
+    private static final String TAG = "LlmEngine";
+    public static final String DEFAULT_MODEL_PATH = "/data/local/tmp/llm/gemma-3n-E2B-it-int4.task";
+    //TODO: Replace adapter_model.safetensors with a flatbuffer converted file, the current version of mediapipe converter don't support gemma-3n
+    public static final String DEFAULT_LORA_PATH = "/data/local/tmp/llm/adapter_model.safetensors";
+    // Context window of every session, prompt and response together
+    public static final int MAX_TOKENS = 4096;
+    public static final long DEFAULT_IDLE_UNLOAD_MILLIS = 5 * 60 * 1000;
+    private static final int MAX_LOADED_ADAPTERS = 2;
+    private static final Map<String, LlmEngine> instances = new HashMap<>();
+    // All model work (load, prefill, decode, close) of every engine runs on this thread, one request at a time
+    private static final InferenceScheduler scheduler = new InferenceScheduler("llm-inference");
+
+    // Called on the engine thread right before the model is unloaded to free memory,
+    // sessions created on top of it must be closed
+    public interface ResidencyListener {
+        void onEngineUnloading();
+    }
+
+    private final Context context;
+    private final String modelPath;
+    private final BackendSelector backendSelector;
+    private SettableFuture<LlmInference> loadFuture;
+    // Set while the model is unloaded to free memory, the next load is a reload
+    private boolean unloaded = false;
+    private int refCount = 0;
+    private final CopyOnWriteArrayList<ResidencyListener> residencyListeners = new CopyOnWriteArrayList<>();
+    private final Handler mainHandler;
+    private final Runnable idleCheck = () -> execute(this::unloadIfIdle);
+    private long idleUnloadMillis = DEFAULT_IDLE_UNLOAD_MILLIS;
+    // When the last request that used the model finished, the idle timer counts from there
+    private long lastUsedMillis;
+    // Set while the running request uses the model, it is not idle however long it takes
+    private boolean inUse = false;
+    // Empty sessions with an adapter applied, least recently used first. Only used on the engine thread.
+    private final LinkedHashMap<String, LlmInferenceSession> adapterSessions = new LinkedHashMap<>(4, 0.75f, true);
+
+    private LlmEngine(Context context, String modelPath) {
+        this.context = context.getApplicationContext();
+        this.modelPath = modelPath;
+        this.backendSelector = new BackendSelector(this.context);
+        this.mainHandler = new Handler(this.context.getMainLooper());
+        scheduler.addRequestFinishedListener(this::onRequestFinished);
+        this.context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                // The app is in the background and on the system's list of processes to kill
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+                    unload("memory pressure, trim level " + level);
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {}
+
+            @Override
+            public void onLowMemory() {}
+        });
+    }
+
+    // One engine per model file
+    public static synchronized LlmEngine getInstance(Context context, String modelPath) {
+        LlmEngine engine = instances.get(modelPath);
+        if (engine == null) {
+            engine = new LlmEngine(context, modelPath);
+            instances.put(modelPath, engine);
+        }
+        return engine;
+    }
+
+    public String getModelPath() {
+        return modelPath;
+    }
+
+    // Registers a new user and starts loading the model if it isn't loaded yet
+    public synchronized ListenableFuture<LlmInference> acquire() {
+        refCount++;
+        Log.d(TAG, "Engine of " + modelPath + " acquired, users: " + refCount);
+        if (loadFuture != null) {
+            return loadFuture;
+        }
+        return loadModel();
+    }
+
+    // Starts loading the model in the background before any screen needs it.
+    // Nobody owns a pre-warmed engine, so it can be dropped again when memory gets tight.
+    public synchronized ListenableFuture<LlmInference> prewarm() {
+        if (loadFuture != null) {
+            return loadFuture;
+        }
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        if (memoryInfo.lowMemory) {
+            Log.d(TAG, "Skipping pre-warm, device is low on memory.");
+            return Futures.immediateCancelledFuture();
+        }
+        Log.d(TAG, "Pre-warming model " + modelPath);
+        return loadModel();
+    }
+
+    // Drops a pre-warmed engine that no screen has acquired yet
+    public synchronized void cancelPrewarm() {
+        if (loadFuture == null || refCount > 0) return;
+        Log.d(TAG, "Cancelling pre-warmed model.");
+        loadFuture.cancel(false);
+        closeEngine();
+    }
+
+    // Closes the model to free memory. A pre-warmed model nobody uses is dropped, one in use is unloaded
+    // after the running request and loaded again by the next one.
+    public synchronized void unload(String reason) {
+        if (refCount == 0) {
+            cancelPrewarm();
+            return;
+        }
+        execute(() -> unloadNow(reason));
+    }
+
+    // How long the model stays loaded without requests, 0 keeps it loaded
+    public synchronized void setIdleUnloadMillis(long idleUnloadMillis) {
+        this.idleUnloadMillis = idleUnloadMillis;
+        scheduleIdleCheck(idleUnloadMillis);
+    }
+
+    public void addResidencyListener(ResidencyListener listener) {
+        residencyListeners.add(listener);
+    }
+
+    public void removeResidencyListener(ResidencyListener listener) {
+        residencyListeners.remove(listener);
+    }
+
+    // Must be called on the engine thread at the start of every request. Returns the model, after loading it
+    // again if it was unloaded. The idle timer restarts when the request finishes.
+    public LlmInference ensureLoaded() throws Exception {
+        SettableFuture<LlmInference> future;
+        synchronized (this) {
+            if (loadFuture == null) {
+                loadFuture = SettableFuture.create();
+            }
+            future = loadFuture;
+            inUse = true;
+        }
+        // The load job may still be queued behind this request, load right here instead of waiting for it
+        loadInto(future);
+        return future.get();
+    }
+
+    public synchronized void release() {
+        if (refCount == 0) {
+            Log.w(TAG, "release() called without a matching acquire()");
+            return;
+        }
+        refCount--;
+        Log.d(TAG, "Engine released, users: " + refCount);
+        if (refCount == 0) {
+            closeEngine();
+        }
+    }
+
+    // Identifies the model file's content, a model replaced at the same path gets a new version
+    public static String modelVersion(String modelPath) {
+        File modelFile = new File(modelPath);
+        return modelPath + ":" + modelFile.length() + ":" + modelFile.lastModified();
+    }
+
+    public InferenceScheduler getScheduler() {
+        return scheduler;
+    }
+
+    // Engine housekeeping (load, session setup and teardown) goes ahead of every inference request
+    public void execute(Runnable task) {
+        scheduler.submit(InferenceScheduler.Priority.SYSTEM, null, token -> task.run());
+    }
+
+    // Must be called on the engine thread, after the future returned by acquire() completed
+    public LlmInferenceSession createSession(LlmInference llmInference, LlmInferenceSession.LlmInferenceSessionOptions options) {
+        return LlmInferenceSession.createFromOptions(llmInference, options);
+    }
+
+    // Sampling settings of the chat and quiz sessions, with the adapter applied when adapterPath isn't null
+    public static LlmInferenceSession.LlmInferenceSessionOptions sessionOptions(String adapterPath) {
+        LlmInferenceSession.LlmInferenceSessionOptions.Builder builder = LlmInferenceSession.LlmInferenceSessionOptions.builder()
+                .setTemperature(0)
+                .setTopK(50)
+                .setTopP(0.1f);
+        if (adapterPath != null) {
+            builder.setLoraPath(adapterPath);
+        }
+        return builder.build();
+    }
+
+    // Must be called on the engine thread. A session with sessionOptions(adapterPath), cloned from an empty
+    // session kept per adapter so the adapter weights are only loaded the first time. The least recently
+    // used adapter is dropped beyond MAX_LOADED_ADAPTERS. Falls back to the base model if the adapter can't be applied.
+    public LlmInferenceSession createAdapterSession(LlmInference llmInference, String adapterPath) {
+        if (adapterPath == null) {
+            return createSession(llmInference, sessionOptions(null));
+        }
+        LlmInferenceSession adapterSession = adapterSessions.get(adapterPath);
+        if (adapterSession == null) {
+            try {
+                long start = System.currentTimeMillis();
+                adapterSession = createSession(llmInference, sessionOptions(adapterPath));
+                Log.d(TAG, "Adapter " + adapterPath + " loaded in " + (System.currentTimeMillis() - start) + " ms");
+            } catch (Exception e) {
+                Log.e(TAG, "Could not apply adapter " + adapterPath + ", using the base model: " + e.getMessage(), e);
+                return createSession(llmInference, sessionOptions(null));
+            }
+            adapterSessions.put(adapterPath, adapterSession);
+            Iterator<Map.Entry<String, LlmInferenceSession>> leastRecentFirst = adapterSessions.entrySet().iterator();
+            while (adapterSessions.size() > MAX_LOADED_ADAPTERS) {
+                Map.Entry<String, LlmInferenceSession> eldest = leastRecentFirst.next();
+                Log.d(TAG, "Dropping adapter " + eldest.getKey());
+                eldest.getValue().close();
+                leastRecentFirst.remove();
+            }
+        }
+        return adapterSession.cloneSession();
+    }
+
+    // Runs on the engine thread, before the model is closed
+    private void closeAdapterSessions() {
+        for (LlmInferenceSession adapterSession : adapterSessions.values()) {
+            adapterSession.close();
+        }
+        adapterSessions.clear();
+    }
+
+    private ListenableFuture<LlmInference> loadModel() {
+        SettableFuture<LlmInference> future = SettableFuture.create();
+        loadFuture = future;
+        execute(() -> loadInto(future));
+        return future;
+    }
+
+    // Runs on the engine thread. Does nothing if the future is cancelled or was already completed.
+    private void loadInto(SettableFuture<LlmInference> future) {
+        if (future.isDone()) {
+            if (future.isCancelled()) {
+                Log.d(TAG, "Model load cancelled before it started.");
+            }
+            return;
+        }
+        try {
+            Log.d(TAG, "Loading model " + modelPath);
+            long start = System.currentTimeMillis();
+            // GPU or CPU, whichever was measured faster for this model on this device
+            LlmInference llmInference = backendSelector.load(modelPath);
+            if (!future.set(llmInference)) {
+                // Cancelled while loading
+                llmInference.close();
+                Log.d(TAG, "Model load cancelled, closed the loaded model.");
+                return;
+            }
+            long loadMillis = System.currentTimeMillis() - start;
+            Log.d(TAG, "Model loaded in " + loadMillis + " ms");
+            synchronized (this) {
+                if (unloaded) {
+                    unloaded = false;
+                    InferenceMetrics.getInstance().recordReload(loadMillis);
+                }
+                lastUsedMillis = SystemClock.elapsedRealtime();
+                scheduleIdleCheck(idleUnloadMillis);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading model: " + e.getMessage(), e);
+            synchronized (this) {
+                // Let the next acquire() try again
+                if (loadFuture == future) {
+                    loadFuture = null;
+                }
+            }
+            future.setException(e);
+        }
+    }
+
+    // Runs on the engine thread after every request, of any engine
+    private synchronized void onRequestFinished() {
+        if (!inUse) return;
+        inUse = false;
+        lastUsedMillis = SystemClock.elapsedRealtime();
+        scheduleIdleCheck(idleUnloadMillis);
+    }
+
+    private void scheduleIdleCheck(long delayMillis) {
+        mainHandler.removeCallbacks(idleCheck);
+        if (idleUnloadMillis > 0) {
+            mainHandler.postDelayed(idleCheck, delayMillis);
+        }
+    }
+
+    // Runs on the engine thread, so never while a request is running. The check is in the SYSTEM lane and
+    // runs ahead of queued requests, which may be about to use the model: it waits for them to be done.
+    private void unloadIfIdle() {
+        long idleMillis;
+        synchronized (this) {
+            if (loadFuture == null || idleUnloadMillis <= 0) return;
+            if (scheduler.hasQueuedRequests()) {
+                scheduleIdleCheck(idleUnloadMillis);
+                return;
+            }
+            idleMillis = SystemClock.elapsedRealtime() - lastUsedMillis;
+            if (idleMillis < idleUnloadMillis) {
+                scheduleIdleCheck(idleUnloadMillis - idleMillis);
+                return;
+            }
+        }
+        unloadNow("idle for " + idleMillis / 1000 + " s");
+    }
+
+    // Runs on the engine thread. The next request loads the model again.
+    private void unloadNow(String reason) {
+        SettableFuture<LlmInference> future;
+        synchronized (this) {
+            future = loadFuture;
+            // Not loaded, or still loading
+            if (future == null || !future.isDone() || future.isCancelled()) return;
+            loadFuture = null;
+            unloaded = true;
+            mainHandler.removeCallbacks(idleCheck);
+        }
+        // Sessions hold native memory of the engine, they go first
+        for (ResidencyListener listener : residencyListeners) {
+            listener.onEngineUnloading();
+        }
+        closeAdapterSessions();
+        try {
+            future.get().close();
+            Log.d(TAG, "Model unloaded (" + reason + "), it is loaded again on the next request.");
+        } catch (Exception e) {
+            Log.d(TAG, "Model was not loaded, nothing to unload.");
+        }
+    }
+
+    private void closeEngine() {
+        SettableFuture<LlmInference> future = loadFuture;
+        loadFuture = null;
+        unloaded = false;
+        mainHandler.removeCallbacks(idleCheck);
+        if (future == null) return;
+        // Queued behind the sessions' own close jobs, so they are gone before the engine
+        execute(() -> {
+            closeAdapterSessions();
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    future.get().close();
+                    Log.d(TAG, "Model closed.");
+                } catch (Exception e) {
+                    Log.d(TAG, "Model was not loaded, nothing to close.");
+                }
+            }
+        });
+    }
+}
@@ -5,9 +5,19 @@ import android.util.Log;
 
 import com.google.mediapipe.tasks.genai.llminference.LlmInference;
 import com.google.mediapipe.tasks.genai.llminference.LlmInferenceSession;
+import com.google.mediapipe.tasks.genai.llminference.ProgressListener;
+import com.google.common.collect.ImmutableList;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.Consumer; // Requires API 24+
 
 
@@ -15,12 +25,146 @@ public class LlmHelper {
     private static final String TAG = "LlmHelper";
     private final Context context;
     private final String modelPath;
+    // Adapter used when no subject adapter matches the lesson
     private final String loraPath;
-    private LlmInference llmChatInference;
-    private LlmInferenceSession llmChatSession;
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private final AdapterRegistry adapterRegistry = new AdapterRegistry(AdapterRegistry.ADAPTER_DIR);
+    // Each task runs on the model of its tier, modelPath is the large one
+    private final ModelRouter modelRouter;
+    // Adapter of the current lesson's sessions, null for the base model alone
+    private volatile String adapterPath;
+    // What the base sessions are prefilled with, kept to rebuild them after an engine was unloaded
+    private String baseContext;
+    // Engine of the large model. All engines share its inference thread.
+    private final LlmEngine llmEngine;
+    private final android.os.Handler mainHandler;
     private boolean isLlmReady = false;
-    private String quizPrompt;
+    private volatile boolean isClosed = false;
+
+    // Answers to repeated prompts are served from disk without running the model
+    private final ResponseMemo responseMemo;
+    // Chat questions that mean the same as an earlier one get its answer, found by embedding similarity
+    private final SemanticResponseCache semanticCache;
+    // Clear cases of quiz answers are graded from embeddings, without the model
+    private final AnswerPreGrader answerPreGrader;
+    // Memo lookups and writes are file I/O, kept off the main and the inference thread
+    private final ExecutorService memoExecutor = Executors.newSingleThreadExecutor();
+    private volatile String lessonHash = "";
+
+    // Lessons longer than this are not prefilled, each turn gets only the relevant passages instead
+    private static final int MAX_PREFILLED_LESSON_TOKENS = 1500;
+    private static final int RETRIEVED_CHUNKS = 3;
+    private static final int LESSON_PASSAGE_CHARS = 2000;
+    private boolean useRetrieval = false;
+    private String lessonContent;
+    private volatile String lessonFilePath;
+    private final Random random = new Random();
+
+    // Room left in the context window for the model's answer
+    private static final int RESPONSE_RESERVE_TOKENS = 512;
+    // Generated once after the lesson context, so the base session holds the prefilled lesson when it is cloned
+    private static final String CONTEXT_ACKNOWLEDGEMENT = "\nReply only with OK.";
+    // Past this much replayable history the older turns are summarized, so every turn attends over about the
+    // same number of tokens however long the conversation gets
+    private static final int COMPACTION_HIGH_WATERMARK_TOKENS = 1536;
+    // A compaction keeps the recent turns that fit in this word for word next to the summary, so one
+    // summary makes room for several turns before the next one
+    private static final int COMPACTION_LOW_WATERMARK_TOKENS = 512;
+    private static final int COMPACTION_MIN_KEPT_TURNS = 2;
+    private static final int SUMMARY_MAX_WORDS = 120;
+
+    // One model used by this screen. Its base session holds only the lesson context, the sessions of the
+    // modes running on the model are cloned from it and never prefill the lesson again.
+    private class ModelSlot {
+        final LlmEngine engine;
+        // Subject adapters are trained for the large model only
+        final boolean usesAdapters;
+        LlmInference inference;
+        LlmInferenceSession baseSession;
+        // Tokens the lesson context takes in the base session, set when it is prefilled
+        int contextTokens = 0;
+        // Written under the helper's lock, a slot is acquired by the first request of a mode running on it
+        volatile boolean acquired = false;
+
+        // The engine unloads the model when it's idle or memory is low. The sessions go with it; the lesson context
+        // and the turns are kept, the next request loads the model again and rebuilds the sessions from them.
+        final LlmEngine.ResidencyListener residencyListener = () -> {
+            closeSessions();
+            inference = null;
+            Log.d(TAG, "Sessions closed, the engine is unloading.");
+        };
+
+        ModelSlot(LlmEngine engine, boolean usesAdapters) {
+            this.engine = engine;
+            this.usesAdapters = usesAdapters;
+        }
+
+        // Runs on the engine thread at the start of every request, loads the model again if it was unloaded
+        LlmInference ensureLoaded() throws Exception {
+            inference = engine.ensureLoaded();
+            return inference;
+        }
+
+        // Runs on the engine thread
+        LlmInferenceSession ensureBaseSession() throws Exception {
+            if (baseSession == null) {
+                // Before the first lesson, or after the engine was unloaded
+                baseSession = engine.createAdapterSession(inference, usesAdapters ? adapterPath : null);
+                if (baseContext != null) {
+                    prefillBaseSession(this, baseContext);
+                }
+            }
+            return baseSession;
+        }
+
+        void closeSessions() {
+            for (ModeSession mode : modes) {
+                if (mode.slot == this) {
+                    mode.close();
+                }
+            }
+            if (baseSession != null) {
+                baseSession.close();
+                baseSession = null;
+            }
+        }
+    }
+
+    // A session per mode, so chat turns and quiz turns don't end up in each other's context
+    private static class ModeSession {
+        final String name;
+        final ModelRouter.Route route;
+        final ConversationWindow conversation = new ConversationWindow(LlmEngine.MAX_TOKENS, RESPONSE_RESERVE_TOKENS);
+        // The large model's slot if the routed model can't be loaded
+        ModelSlot slot;
+        // Cloned from the slot's base session on first use
+        LlmInferenceSession session;
+        // Summarization of the older turns waiting in the batch lane or running, null if none
+        volatile InferenceScheduler.CancellationToken compaction;
+
+        ModeSession(String name, ModelRouter.Route route) {
+            this.name = name;
+            this.route = route;
+        }
+
+        void close() {
+            if (session != null) {
+                session.close();
+                session = null;
+            }
+        }
+    }
+
+    // Keyed by model path
+    private final Map<String, ModelSlot> slots = new LinkedHashMap<>();
+    private final ModeSession chatMode;
+    private final ModeSession quizMode;
+    // Grading prompts carry the question and the reference answer, they need none of the quiz turns nor the
+    // earlier gradings. Every answer is graded on a fresh clone of the base session.
+    private final ModeSession gradingMode;
+    private final List<ModeSession> modes = new ArrayList<>();
+    private LlmInferenceSession.LlmInferenceSessionOptions sessionOptions;
+    private final ModelSlot reformatSlot;
+    private final LessonReformatter lessonReformatter;
 
     // Listener for readiness
     public interface LlmReadinessListener {
@@ -29,44 +173,78 @@ public class LlmHelper {
 
     final private LlmReadinessListener readinessListener;
 
+    // Listener for streamed responses, both callbacks are delivered on the main thread
+    public interface ResponseListener {
+        void onPartialResponse(String responseSoFar);
+        void onResponseComplete(String response);
+    }
+
     public LlmHelper(Context context, String modelPath, String loraPath, LlmReadinessListener listener) {
         this.context = context.getApplicationContext();
         this.modelPath = modelPath;
         this.loraPath = loraPath;
         this.readinessListener = listener;
+        this.mainHandler = new android.os.Handler(this.context.getMainLooper());
+        this.responseMemo = new ResponseMemo(this.context);
+        this.semanticCache = new SemanticResponseCache(this.context);
+        this.answerPreGrader = new AnswerPreGrader(LessonIndex.getInstance(this.context));
+        this.modelRouter = new ModelRouter(modelPath);
+        BackendSelector backendSelector = new BackendSelector(this.context);
+        modelRouter.setMeasuredSpeed(modelPath, backendSelector.getPrefillTokensPerSecond(modelPath),
+                backendSelector.getDecodeTokensPerSecond(modelPath));
+        this.llmEngine = slotFor(modelPath).engine;
+        this.chatMode = addMode("chat", ModelRouter.TaskType.CHAT);
+        this.quizMode = addMode("quiz", ModelRouter.TaskType.QUESTION_GENERATION);
+        this.gradingMode = addMode("grading", ModelRouter.TaskType.QUIZ_GRADING);
+        ModelRouter.Route reformatRoute = modelRouter.route(ModelRouter.TaskType.REFORMAT);
+        this.reformatSlot = slotFor(reformatRoute.modelPath);
+        this.lessonReformatter = new LessonReformatter(context, reformatSlot.engine, this);
         initializeLlm();
     }
 
+    private ModelSlot slotFor(String slotModelPath) {
+        ModelSlot slot = slots.get(slotModelPath);
+        if (slot == null) {
+            slot = new ModelSlot(LlmEngine.getInstance(context, slotModelPath), slotModelPath.equals(modelPath));
+            slot.engine.addResidencyListener(slot.residencyListener);
+            slots.put(slotModelPath, slot);
+        }
+        return slot;
+    }
+
+    private ModeSession addMode(String name, ModelRouter.TaskType taskType) {
+        ModelRouter.Route route = modelRouter.route(taskType);
+        ModeSession mode = new ModeSession(name, route);
+        mode.slot = slotFor(route.modelPath);
+        modes.add(mode);
+        Log.d(TAG, "The " + name + " mode runs on " + route.modelPath);
+        return mode;
+    }
+
+    // Loads the large model only, which holds the lesson context used to pick retrieval. The small model is
+    // loaded by the first request routed to it, a screen that never grades doesn't pay for it.
     private void initializeLlm() {
-        executorService.execute(() -> {
+        ModelSlot largeSlot = slots.get(modelPath);
+        acquire(largeSlot);
+        llmEngine.execute(() -> {
             try {
                 Log.d(TAG, "LLM Start initialization.");
-                LlmInference.LlmInferenceOptions options = LlmInference.LlmInferenceOptions.builder()
-                        .setModelPath(modelPath)
-                        .setMaxTokens(4096)
-                        .setPreferredBackend(LlmInference.Backend.GPU)
-                        .build();
-
-                llmChatInference = LlmInference.createFromOptions(context, options);
-
-                LlmInferenceSession.LlmInferenceSessionOptions sessionOptions = LlmInferenceSession.LlmInferenceSessionOptions.builder()
-                        .setTemperature(0)
-                        .setTopK(50)
-                        .setTopP(0.1f)
-//                        .setLoraPath(loraPath)
-                        .build();
-
-                llmChatSession = LlmInferenceSession.createFromOptions(llmChatInference, sessionOptions);
+                // Runs after the engine's load job, so this doesn't block when the model is loaded
+                largeSlot.ensureLoaded();
+
+                // Adapters are chosen per lesson, see setContext
+                sessionOptions = LlmEngine.sessionOptions(null);
+
                 isLlmReady = true;
                 if (readinessListener != null) {
                     // Post to main thread if listener updates UI
-                    new android.os.Handler(context.getMainLooper()).post(() -> readinessListener.onLlmReady(true));
+                    mainHandler.post(() -> readinessListener.onLlmReady(true));
                 }
                 Log.d(TAG, "LLM Initialized successfully.");
             } catch (Exception e) {
                 isLlmReady = false;
                 if (readinessListener != null) {
-                    new android.os.Handler(context.getMainLooper()).post(() -> readinessListener.onLlmReady(false));
+                    mainHandler.post(() -> readinessListener.onLlmReady(false));
                 }
                 Log.e(TAG, "Error initializing LLM: " + e.getMessage(), e);
             }
@@ -77,111 +255,594 @@ public class LlmHelper {
         return isLlmReady;
     }
 
-    public void setContext(String fileContent) {
-        String initialContext = "you are a helpful teacher that helps a student to learn this lesson: ";
-        llmChatSession.addQueryChunk(initialContext + fileContent);
-        quizPrompt = "ask me a question about the lesson, in no more than 80 words";
+    // Registers the screen as a user of the slot's engine, which starts loading its model. Does nothing if it
+    // already is one. Returns false once the helper is closed, close() releases only the slots acquired before.
+    private synchronized boolean acquire(ModelSlot slot) {
+        if (isClosed) return false;
+        if (!slot.acquired) {
+            slot.engine.acquire();
+            slot.acquired = true;
+        }
+        return true;
     }
 
-    // Using Consumer for callbacks (requires API 24+).
-    // For lower API levels, define custom interfaces.
-    public void generateChatResponse(String userInput, Consumer<String> callback) {
-        if (!isLlmReady || llmChatInference == null || llmChatSession == null) {
-            callback.accept("LLM is not ready.");
-            return;
+    private synchronized void release(ModelSlot slot) {
+        if (slot.acquired) {
+            slot.engine.release();
+            slot.acquired = false;
         }
-        executorService.execute(() -> {
+    }
+
+    public void setContext(String fileContent, String filePath) {
+        lessonHash = ContentHash.sha256(fileContent);
+        llmEngine.execute(() -> {
             try {
-                llmChatSession.addQueryChunk(userInput);
-                String result = llmChatSession.generateResponse();
-                // Post to main thread if callback updates UI
-                new android.os.Handler(context.getMainLooper()).post(() -> callback.accept(result != null ? result : "No response from LLM."));
+                lessonContent = fileContent;
+                lessonFilePath = filePath;
+                // Subject adapters are applied on the loaded model, a new subject doesn't reload it
+                adapterPath = adapterRegistry.adapterFor(filePath, fileContent, loraPath);
+                ModelSlot largeSlot = slots.get(modelPath);
+                // Retrieval needs the lesson in the vector store, which is keyed by file path
+                useRetrieval = filePath != null && largeSlot.ensureLoaded().sizeInTokens(fileContent) > MAX_PREFILLED_LESSON_TOKENS;
+                String initialContext;
+                if (useRetrieval) {
+                    Log.d(TAG, "Long lesson, using retrieved passages instead of the full text.");
+                    initialContext = "you are a helpful teacher that helps a student to learn a lesson, " +
+                            "each request comes with the passages of the lesson it is about.";
+                } else {
+                    initialContext = "you are a helpful teacher that helps a student to learn this lesson: " + fileContent;
+                }
+                baseContext = initialContext;
+                for (ModelSlot slot : slots.values()) {
+                    // A new lesson starts from empty sessions
+                    slot.closeSessions();
+                    // A model that isn't loaded yet is prefilled by the first request that loads it
+                    if (slot.acquired) {
+                        slot.ensureLoaded();
+                        slot.baseSession = slot.engine.createAdapterSession(slot.inference, slot.usesAdapters ? adapterPath : null);
+                        prefillBaseSession(slot, initialContext);
+                    } else {
+                        slot.contextTokens = 0;
+                    }
+                }
+                for (ModeSession mode : modes) {
+                    mode.conversation.setContext(initialContext, mode.slot.contextTokens);
+                }
             } catch (Exception e) {
-                Log.e(TAG, "Error generating chat response: " + e.getMessage(), e);
-                new android.os.Handler(context.getMainLooper()).post(() -> callback.accept("Error generating response: " + e.getMessage()));
+                Log.e(TAG, "Error setting the lesson context: " + e.getMessage(), e);
             }
         });
     }
 
-    public void generateQuestionFromContext(Consumer<String> callback) {
-        if (!isLlmReady || llmChatInference == null || llmChatSession == null) {
-            callback.accept("LLM is not ready.");
+    // Runs on the engine thread. Adding a query chunk alone may defer the prefill to the next generation,
+    // a one word reply makes the base session process the lesson before it is cloned.
+    // Sets the slot's contextTokens to the number of tokens the context and the reply take in the session.
+    private void prefillBaseSession(ModelSlot slot, String initialContext) throws Exception {
+        String prompt = initialContext + CONTEXT_ACKNOWLEDGEMENT;
+        slot.baseSession.addQueryChunk(prompt);
+        String reply = slot.baseSession.generateResponseAsync((partialResult, done) -> {}).get();
+        slot.contextTokens = slot.inference.sizeInTokens(prompt) + slot.inference.sizeInTokens(reply != null ? reply : "");
+    }
+
+    // Runs on the engine thread at the start of every request. Acquires the mode's model on its first request
+    // and loads it again if it was unloaded.
+    private void ensureEngine(ModeSession mode) throws Exception {
+        ModelSlot slot = mode.slot;
+        if (!acquire(slot)) {
+            throw new IllegalStateException("The helper is closed.");
+        }
+        try {
+            slot.ensureLoaded();
+        } catch (Exception e) {
+            ModelSlot largeSlot = slots.get(modelPath);
+            if (slot == largeSlot) {
+                throw e;
+            }
+            // A missing or broken small model only costs speed
+            Log.e(TAG, "Error loading " + slot.engine.getModelPath() + ", its tasks use the large model: " + e.getMessage(), e);
+            for (ModeSession other : modes) {
+                if (other.slot == slot) {
+                    other.slot = largeSlot;
+                }
+            }
+            release(slot);
+            ensureEngine(mode);
+        }
+    }
+
+    // Runs on the engine thread
+    private LlmInferenceSession sessionFor(ModeSession mode) throws Exception {
+        if (mode.session == null) {
+            mode.session = mode.slot.ensureBaseSession().cloneSession();
+            mode.conversation.onSessionCloned(mode.slot.contextTokens);
+            Log.d(TAG, "Forked the " + mode.name + " session from the lesson context.");
+        }
+        return mode.session;
+    }
+
+    // Runs on the engine thread. Counts the prompt and, when it would overflow the context window,
+    // rebuilds the mode's session from the lesson context and the most recent turns that fit.
+    // Returns the number of tokens the prompt added to the session.
+    private int addPrompt(ModeSession mode, String prompt) throws Exception {
+        int promptTokens = mode.slot.inference.sizeInTokens(prompt);
+        // A mode without a session starts from the base session and its recent turns
+        if (mode.session == null || !mode.conversation.fits(promptTokens)) {
+            rebuildSession(mode, promptTokens);
+        }
+        sessionFor(mode).addQueryChunk(prompt);
+        return promptTokens;
+    }
+
+    private void rebuildSession(ModeSession mode, int promptTokens) throws Exception {
+        Log.d(TAG, "Rebuilding the " + mode.name + " session, it held " + mode.conversation.getSessionTokens() + " tokens.");
+        // A fresh clone of the base session already holds the lesson context
+        mode.close();
+        LlmInferenceSession session = sessionFor(mode);
+        List<ConversationWindow.Turn> recentTurns = mode.conversation.recentTurnsFitting(promptTokens);
+        String summary = mode.conversation.getSummary();
+        int historyTokens = 0;
+        if (!recentTurns.isEmpty() || !summary.isEmpty()) {
+            String history = ConversationWindow.formatHistory(summary, recentTurns);
+            historyTokens = mode.slot.inference.sizeInTokens(history);
+            session.addQueryChunk(history);
+        }
+        mode.conversation.onSessionRebuilt(historyTokens);
+        Log.d(TAG, "The " + mode.name + " session was rebuilt with " + recentTurns.size() + " recent turns.");
+    }
+
+    // Runs on the engine thread after a turn was recorded. Summarizes the older turns in the batch lane,
+    // so it only runs while no request is waiting.
+    private void scheduleCompaction(ModeSession mode) {
+        if (mode.compaction != null ||
+                !mode.conversation.needsCompaction(COMPACTION_HIGH_WATERMARK_TOKENS, COMPACTION_MIN_KEPT_TURNS)) {
             return;
         }
-        executorService.execute(() -> {
+        mode.compaction = llmEngine.getScheduler().submit(InferenceScheduler.Priority.BATCH, this, token -> {
             try {
-//                String prompt = "Ask me a question about the lesson.";
-                String prompt = quizPrompt;
-                llmChatSession.addQueryChunk(prompt);
-                String result = llmChatSession.generateResponse();
-                new android.os.Handler(context.getMainLooper()).post(() -> callback.accept(result != null ? result : "Could not generate question."));
+                compact(mode, token);
             } catch (Exception e) {
-                Log.e(TAG, "Error generating question: " + e.getMessage(), e);
-                new android.os.Handler(context.getMainLooper()).post(() -> callback.accept("Error generating question: " + e.getMessage()));
+                if (!token.isCancelled()) {
+                    Log.e(TAG, "Error summarizing the " + mode.name + " history: " + e.getMessage(), e);
+                }
+            } finally {
+                mode.compaction = null;
             }
         });
     }
 
-    public void evaluateAnswer(String userAnswer, Consumer<String> callback) {
-        if (!isLlmReady || llmChatInference == null || llmChatSession == null) {
-            callback.accept("LLM is not ready.");
+    // Called when the student sends a new turn, it shouldn't wait for a summary. Compaction is tried again
+    // after the turn.
+    private void cancelCompaction(ModeSession mode) {
+        InferenceScheduler.CancellationToken compaction = mode.compaction;
+        if (compaction != null) {
+            compaction.cancel();
+            mode.compaction = null;
+        }
+    }
+
+    // Runs on the engine thread. Replaces the older turns with a summary and rebuilds the session from the
+    // lesson context, the summary and the recent turns, so the next turn doesn't pay for the rebuild.
+    private void compact(ModeSession mode, InferenceScheduler.CancellationToken token) throws Exception {
+        if (token.isCancelled() || !mode.conversation.needsCompaction(COMPACTION_HIGH_WATERMARK_TOKENS, COMPACTION_MIN_KEPT_TURNS)) {
             return;
         }
-        executorService.execute(() -> {
+        List<ConversationWindow.Turn> olderTurns =
+                mode.conversation.turnsToCompact(COMPACTION_LOW_WATERMARK_TOKENS, COMPACTION_MIN_KEPT_TURNS);
+        // Only the summary is over the watermark, summarizing it again wouldn't shrink it much
+        if (olderTurns.isEmpty()) {
+            return;
+        }
+        ensureEngine(mode);
+        String prompt = ConversationWindow.formatHistory(mode.conversation.getSummary(), olderTurns) +
+                "\nSummarize this conversation between the student and the teacher in no more than " + SUMMARY_MAX_WORDS +
+                " words. Keep the topics, the facts explained and what the student found hard. Reply only with the summary.";
+        InferenceMetrics.Trace trace = new InferenceMetrics.Trace("summary");
+        trace.onStarted();
+        // Asked on a clone of the base session, the request itself doesn't belong in the conversation
+        LlmInferenceSession session = mode.slot.ensureBaseSession().cloneSession();
+        String summary;
+        try {
+            session.addQueryChunk(prompt);
+            token.setOnCancel(session::cancelGenerateResponseAsync);
+            trace.onGenerateStarted(mode.slot.inference.sizeInTokens(prompt));
+            summary = session.generateResponseAsync((partialResult, done) -> {
+                if (partialResult != null && !partialResult.isEmpty()) trace.onToken();
+            }).get();
+        } finally {
+            token.setOnCancel(null);
+            session.close();
+        }
+        if (token.isCancelled() || summary == null || summary.trim().isEmpty()) {
+            return;
+        }
+        summary = summary.trim();
+        int summaryTokens = mode.slot.inference.sizeInTokens(summary);
+        trace.onGenerated(summaryTokens);
+        mode.conversation.onCompacted(olderTurns, summary, summaryTokens);
+        Log.d(TAG, "Summarized " + olderTurns.size() + " " + mode.name + " turns in " + summaryTokens + " tokens.");
+        rebuildSession(mode, 0);
+        trace.finish();
+    }
+
+    // An answer served without the model is added to the mode's session as history, so the next turns continue
+    // the conversation the student saw
+    private void recordServedTurn(ModeSession mode, String prompt, String answer) {
+        llmEngine.getScheduler().submit(InferenceScheduler.Priority.INTERACTIVE, this, token -> {
             try {
-                String prompt = "Evaluate the following answer to the question in no more than 80 words: ";
-                llmChatSession.addQueryChunk(prompt + userAnswer);
-                String result = llmChatSession.generateResponse();
-                new android.os.Handler(context.getMainLooper()).post(() -> callback.accept(result != null ? result : "Could not evaluate answer."));
+                ensureEngine(mode);
+                int sessionTokens = addPrompt(mode, ConversationWindow.formatTurn(prompt, answer));
+                int replayTokens = mode.slot.inference.sizeInTokens(prompt) + mode.slot.inference.sizeInTokens(answer);
+                mode.conversation.addTurn(new ConversationWindow.Turn(prompt, answer, replayTokens), sessionTokens);
+                scheduleCompaction(mode);
             } catch (Exception e) {
-                Log.e(TAG, "Error evaluating answer: " + e.getMessage(), e);
-                new android.os.Handler(context.getMainLooper()).post(() -> callback.accept("Error evaluating answer: " + e.getMessage()));
+                Log.e(TAG, "Error recording the served " + mode.name + " turn: " + e.getMessage(), e);
             }
         });
     }
 
-    public void reformatLesson(String fileContent, Consumer<String> callback) {
-        if (!isLlmReady || llmChatInference == null) {
-            callback.accept(null);
-            return;
+    // replayPrompt is what the turn looks like if it has to be replayed, without retrieved passages
+    private void recordTurn(ModeSession mode, String replayPrompt, int promptTokens, String response) {
+        int responseTokens = mode.slot.inference.sizeInTokens(response);
+        int replayTokens = mode.slot.inference.sizeInTokens(replayPrompt) + responseTokens;
+        mode.conversation.addTurn(new ConversationWindow.Turn(replayPrompt, response, replayTokens), promptTokens + responseTokens);
+    }
+
+    // Runs on the engine thread. In retrieval mode the question is prefixed with the closest lesson chunks.
+    // retrieved are the chunks already retrieved for the question from the lesson at retrievedFrom, or null.
+    private String buildChatPrompt(String userInput, String retrievedFrom, List<LessonVectorStore.Match> retrieved) {
+        if (!useRetrieval) {
+            return userInput;
+        }
+        List<String> chunks = null;
+        try {
+            if (retrieved != null && retrievedFrom.equals(lessonFilePath)) {
+                chunks = new ArrayList<>();
+                for (LessonVectorStore.Match match : retrieved) {
+                    chunks.add(match.text);
+                }
+            } else {
+                chunks = LessonIndex.getInstance(context).retrieveChunks(userInput, lessonFilePath, RETRIEVED_CHUNKS);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error retrieving lesson chunks: " + e.getMessage(), e);
+        }
+        // Lessons that were never indexed fall back to their beginning
+        String passages = chunks != null && !chunks.isEmpty() ? String.join("\n---\n", chunks) : lessonPassage(0);
+        return "Lesson passages:\n" + passages + "\n\nUsing these passages, answer the student: " + userInput;
+    }
+
+    private static String questionBatchRequest(int count) {
+        return "ask me " + count + " different questions about the lesson, each answerable in no more than 80 words";
+    }
+
+    private String buildQuestionBatchPrompt(int count) {
+        String prompt = questionBatchRequest(count) + ". Reply only with a JSON array of objects with the keys " +
+                "\"question\" and \"answer\", for example: [{\"question\": \"...\", \"answer\": \"...\"}]";
+        if (!useRetrieval) {
+            return prompt;
+        }
+        // A random part of the lesson, so consecutive batches cover different topics
+        int start = random.nextInt(Math.max(1, lessonContent.length() - LESSON_PASSAGE_CHARS));
+        return "Lesson passage:\n" + lessonPassage(start) + "\n\n" + prompt;
+    }
+
+    private String lessonPassage(int start) {
+        int end = Math.min(lessonContent.length(), start + LESSON_PASSAGE_CHARS);
+        // Start and end on whole words
+        if (start > 0) {
+            int space = lessonContent.indexOf(' ', start);
+            start = space >= 0 && space < end ? space + 1 : start;
+        }
+        if (end < lessonContent.length()) {
+            int space = lessonContent.lastIndexOf(' ', end);
+            end = space > start ? space : end;
+        }
+        return lessonContent.substring(start, end);
+    }
+
+    // Runs on the engine thread. Uses the async API so that cancelling the request stops the generation.
+    private String generate(ModeSession mode, InferenceScheduler.CancellationToken token, InferenceMetrics.Trace trace,
+                            int promptTokens, ProgressListener<String> progressListener) throws Exception {
+        LlmInferenceSession session = sessionFor(mode);
+        StringBuilder streamed = new StringBuilder();
+        token.setOnCancel(session::cancelGenerateResponseAsync);
+        try {
+            trace.onGenerateStarted(promptTokens);
+            long start = System.currentTimeMillis();
+            String result = session.generateResponseAsync((partialResult, done) -> {
+                if (partialResult != null && !partialResult.isEmpty()) {
+                    trace.onToken();
+                    streamed.append(partialResult);
+                }
+                progressListener.run(partialResult, done);
+            }).get();
+            // The budget picks the model, see ModelRouter. An answer over budget is still delivered whole.
+            long millis = System.currentTimeMillis() - start;
+            if (mode.route.latencyBudgetMillis > 0 && millis > mode.route.latencyBudgetMillis) {
+                Log.w(TAG, "The " + mode.name + " request took " + millis + " ms, over its " + mode.route.latencyBudgetMillis + " ms budget.");
+            }
+            trace.onGenerated(mode.slot.inference.sizeInTokens(result != null && !result.isEmpty() ? result : streamed.toString()));
+            return result;
+        } finally {
+            token.setOnCancel(null);
+        }
+    }
+
+    private void postIfActive(InferenceScheduler.CancellationToken token, InferenceMetrics.Trace trace, Runnable callback) {
+        // Nobody is waiting for the result of a cancelled request
+        if (!token.isCancelled()) {
+            mainHandler.post(trace.measureCallback(callback));
+        }
+    }
+
+    // Posts the last callback of a request and records the request once it has run
+    private void finishIfActive(InferenceScheduler.CancellationToken token, InferenceMetrics.Trace trace, Runnable callback) {
+        postIfActive(token, trace, () -> {
+            callback.run();
+            trace.finish();
+        });
+    }
+
+    // Delivers an answer found without the model on the main thread and records the request with its outcome
+    private void serve(InferenceScheduler.CancellationToken token, InferenceMetrics.Trace trace, InferenceMetrics.Outcome outcome,
+                       Runnable callback) {
+        mainHandler.post(trace.measureCallback(() -> {
+            if (token.isCancelled()) return;
+            callback.run();
+            trace.onServed(outcome);
+        }));
+    }
+
+    // Everything besides the lesson and the prompt that changes the answers of a mode
+    private String memoModelVersion(ModeSession mode) {
+        String adapter = mode.slot.usesAdapters && adapterPath != null ? adapterPath : "";
+        return LlmEngine.modelVersion(mode.slot.engine.getModelPath()) + ":" + adapter;
+    }
+
+    // Delivers the memoized answer to the prompt on the main thread, or calls request on the memo executor with
+    // the memo key to store its answer under and the returned token. request returns the token of the inference
+    // it started, or null if it answered by other means. The returned token cancels whichever of them happens.
+    // historyHash is the conversation the prompt continues, see ResponseMemo.key. trace is the request's, created
+    // when it entered the helper.
+    private InferenceScheduler.CancellationToken withMemo(ModeSession mode, InferenceMetrics.Trace trace, String historyHash, String prompt,
+                                                          Consumer<String> onHit,
+                                                          BiFunction<String, InferenceScheduler.CancellationToken, InferenceScheduler.CancellationToken> request) {
+        InferenceScheduler.CancellationToken token = new InferenceScheduler.CancellationToken();
+        String currentLessonHash = lessonHash;
+        memoExecutor.execute(() -> {
+            String memoKey = ResponseMemo.key(currentLessonHash, historyHash, prompt, mode.name, memoModelVersion(mode));
+            String answer = responseMemo.get(memoKey);
+            if (isClosed || token.isCancelled()) return;
+            if (answer != null) {
+                Log.d(TAG, "Serving the " + mode.name + " answer from the memo.");
+                serve(token, trace, InferenceMetrics.Outcome.MEMO, () -> onHit.accept(answer));
+                return;
+            }
+            InferenceScheduler.CancellationToken requestToken = request.apply(memoKey, token);
+            if (requestToken != null) {
+                token.setOnCancel(requestToken::cancel);
+            }
+        });
+        return token;
+    }
+
+    // Runs on the engine thread after a request completed
+    private void remember(ModeSession mode, String memoKey, String answer) {
+        if (answer == null || answer.isEmpty()) return;
+        try {
+            memoExecutor.execute(() -> responseMemo.put(memoKey, answer));
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Helper closed, answer not memoized.");
+        }
+    }
+
+    // Streams the response token by token, so the UI can show text as soon as prefill is done.
+    // A question asked before about the same lesson, word for word or in other words, is answered from the caches.
+    // Word for word only at the same point of the conversation, the answer to a follow-up depends on what came before.
+    // In other words only for a question opening the conversation that retrieved the same lesson chunks.
+    public InferenceScheduler.CancellationToken generateChatResponseStreaming(String userInput, ResponseListener listener) {
+        if (!isLlmReady) {
+            listener.onResponseComplete("LLM is not ready.");
+            return null;
         }
+        cancelCompaction(chatMode);
+        Consumer<String> onHit = answer -> {
+            listener.onResponseComplete(answer);
+            recordServedTurn(chatMode, userInput, answer);
+        };
+        InferenceMetrics.Trace trace = new InferenceMetrics.Trace("chat");
+        boolean firstTurn = chatMode.conversation.getHistoryHash().isEmpty();
+        String filePath = lessonFilePath;
+        return withMemo(chatMode, trace, chatMode.conversation.getHistoryHash(), userInput, onHit, (memoKey, token) -> {
+            String currentLessonHash = lessonHash;
+            String modelVersion = memoModelVersion(chatMode);
+            ImmutableList<Float> questionEmbedding = null;
+            List<LessonVectorStore.Match> retrieved = null;
+            String chunkKey = "";
+            try {
+                // Milliseconds, against seconds for an answer from the model
+                LessonIndex lessonIndex = LessonIndex.getInstance(context);
+                questionEmbedding = lessonIndex.embedQuery(userInput);
+                if (filePath != null) {
+                    retrieved = lessonIndex.retrieve(questionEmbedding, filePath, RETRIEVED_CHUNKS);
+                    chunkKey = SemanticResponseCache.chunkKey(retrieved);
+                }
+                String similarAnswer = firstTurn && !chunkKey.isEmpty()
+                        ? semanticCache.find(currentLessonHash, modelVersion, chunkKey, questionEmbedding) : null;
+                if (similarAnswer != null) {
+                    serve(token, trace, InferenceMetrics.Outcome.SEMANTIC_CACHE, () -> onHit.accept(similarAnswer));
+                    return null;
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error embedding the question, skipping the semantic cache: " + e.getMessage(), e);
+            }
+            ImmutableList<Float> embedding = questionEmbedding;
+            String answeredChunkKey = chunkKey;
+            return submitChatResponse(trace, userInput, filePath, retrieved, listener, (historyHash, answer) -> {
+                // The conversation the answer was generated in, it can differ from the one looked up if the session
+                // was rebuilt or an earlier question was answered meanwhile
+                remember(chatMode, ResponseMemo.key(currentLessonHash, historyHash, userInput, chatMode.name, modelVersion), answer);
+                if (embedding == null || answeredChunkKey.isEmpty() || !historyHash.isEmpty()) return;
+                try {
+                    memoExecutor.execute(() -> semanticCache.add(currentLessonHash, modelVersion, answeredChunkKey, userInput,
+                            embedding, answer));
+                } catch (RejectedExecutionException e) {
+                    Log.d(TAG, "Helper closed, answer not added to the semantic cache.");
+                }
+            });
+        });
+    }
 
-        executorService.execute(() -> {
+    // onAnswered is called on the engine thread with the history hash of the conversation before the turn and
+    // a complete answer worth caching
+    private InferenceScheduler.CancellationToken submitChatResponse(InferenceMetrics.Trace trace, String userInput, String retrievedFrom,
+                                                                    List<LessonVectorStore.Match> retrieved,
+                                                                    ResponseListener listener, BiConsumer<String, String> onAnswered) {
+        return llmEngine.getScheduler().submit(InferenceScheduler.Priority.INTERACTIVE, this, token -> {
+            trace.onStarted();
+            StringBuilder responseBuilder = new StringBuilder();
             try {
-                String prompt = "Reformat this educational content into clear, structured markdown:\n\n" +
-                        "1. Create a main title using #\n" +
-                        "2. Use ## for main sections\n" +
-                        "3. Use ### for subsections\n" +
-                        "4. Make key terms and concepts **bold**\n" +
-                        "5. Use bullet points (*) for lists\n" +
-                        "6. Keep paragraphs short (2-3 sentences max)\n" +
-                        "7. Organize information logically\n" +
-                        "8. Make it easy to read and study\n\n" +
-                        "Content to reformat:\n" + fileContent;
-                String result = llmChatInference.generateResponse(prompt);
-                new android.os.Handler(context.getMainLooper()).post(() -> callback.accept(result));
+                ensureEngine(chatMode);
+                int promptTokens = addPrompt(chatMode, buildChatPrompt(userInput, retrievedFrom, retrieved));
+                String historyHash = chatMode.conversation.getHistoryHash();
+                String result = generate(chatMode, token, trace, promptTokens, (partialResult, done) -> {
+                    if (partialResult == null || partialResult.isEmpty()) return;
+                    responseBuilder.append(partialResult);
+                    String responseSoFar = responseBuilder.toString();
+                    postIfActive(token, trace, () -> listener.onPartialResponse(responseSoFar));
+                });
+                String response = result != null && !result.isEmpty() ? result : responseBuilder.toString();
+                recordTurn(chatMode, userInput, promptTokens, response);
+                scheduleCompaction(chatMode);
+                if (!response.isEmpty()) {
+                    onAnswered.accept(historyHash, response);
+                }
+                finishIfActive(token, trace, () -> listener.onResponseComplete(response.isEmpty() ? "No response from LLM." : response));
             } catch (Exception e) {
-                Log.e(TAG, "Error reformatting the lesson: " + e.getMessage(), e);
-                new android.os.Handler(context.getMainLooper()).post(() -> callback.accept(null));
+                Log.e(TAG, "Error streaming chat response: " + e.getMessage(), e);
+                postIfActive(token, trace, () -> listener.onResponseComplete("Error generating response: " + e.getMessage()));
             }
         });
     }
 
+    // Callbacks are delivered on the main thread
+    public interface QuestionBatchListener {
+        void onQuestion(QuizQuestion question);
+        void onComplete(int questionCount);
+    }
 
-    public void close() {
-        executorService.execute(() -> {
-            if (llmChatInference != null) {
-                llmChatInference.close();
-                llmChatInference = null;
+    // One generation for several questions, so the prompt and its prefill are paid once per batch.
+    // Questions are parsed from the streamed JSON and delivered one by one as soon as they are complete.
+    public InferenceScheduler.CancellationToken generateQuestionBatch(int count, InferenceScheduler.Priority priority, QuestionBatchListener listener) {
+        if (!isLlmReady) {
+            listener.onComplete(0);
+            return null;
+        }
+        InferenceMetrics.Trace trace = new InferenceMetrics.Trace("question batch");
+        return llmEngine.getScheduler().submit(priority, this, token -> {
+            trace.onStarted();
+            QuizBatchParser parser = new QuizBatchParser();
+            List<QuizQuestion> questions = new ArrayList<>();
+            try {
+                ensureEngine(quizMode);
+                int promptTokens = addPrompt(quizMode, buildQuestionBatchPrompt(count));
+                generate(quizMode, token, trace, promptTokens, (partialResult, done) -> {
+                    if (partialResult == null || partialResult.isEmpty()) return;
+                    for (QuizQuestion question : parser.feed(partialResult)) {
+                        questions.add(question);
+                        postIfActive(token, trace, () -> listener.onQuestion(question));
+                    }
+                });
+                // Replayed as plain questions, not as JSON
+                StringBuilder askedQuestions = new StringBuilder();
+                for (QuizQuestion question : questions) {
+                    askedQuestions.append(question.question).append('\n');
+                }
+                recordTurn(quizMode, questionBatchRequest(count), promptTokens, askedQuestions.toString());
+            } catch (Exception e) {
+                Log.e(TAG, "Error generating questions: " + e.getMessage(), e);
             }
-            if (llmChatSession != null) {
-                llmChatSession.close();
-                llmChatSession = null;
+            finishIfActive(token, trace, () -> listener.onComplete(questions.size()));
+        });
+    }
+
+    // The question is part of the prompt, grading has its own session without the quiz turns
+    // referenceAnswer is the answer generated with the question, it can be null
+    public InferenceScheduler.CancellationToken evaluateAnswer(String question, String referenceAnswer, String userAnswer, Consumer<String> callback) {
+        if (!isLlmReady) {
+            callback.accept("LLM is not ready.");
+            return null;
+        }
+        String reference = referenceAnswer != null && !referenceAnswer.isEmpty() ? "Reference answer: " + referenceAnswer + "\n" : "";
+        String prompt = "Evaluate the following answer to the question in no more than 80 words.\n" +
+                "Question: " + question + "\n" +
+                reference +
+                "Answer: " + userAnswer;
+        String filePath = lessonFilePath;
+        InferenceMetrics.Trace trace = new InferenceMetrics.Trace("evaluation");
+        // Grading prompts carry the question and the answers, they don't continue a conversation
+        return withMemo(gradingMode, trace, "", prompt, callback, (memoKey, token) -> {
+            // Blank, repeated, copied or off-topic answers don't need the model
+            String feedback = answerPreGrader.preGrade(question, referenceAnswer, userAnswer, filePath);
+            if (feedback != null) {
+                serve(token, trace, InferenceMetrics.Outcome.PRE_GRADED, () -> callback.accept(feedback));
+                return null;
+            }
+            return submitEvaluation(trace, prompt, memoKey, callback);
+        });
+    }
+
+    private InferenceScheduler.CancellationToken submitEvaluation(InferenceMetrics.Trace trace, String prompt, String memoKey,
+                                                                  Consumer<String> callback) {
+        return llmEngine.getScheduler().submit(InferenceScheduler.Priority.INTERACTIVE, this, token -> {
+            trace.onStarted();
+            try {
+                ensureEngine(gradingMode);
+                int promptTokens = addPrompt(gradingMode, prompt);
+                String result = generate(gradingMode, token, trace, promptTokens, (partialResult, done) -> {});
+                remember(gradingMode, memoKey, result);
+                finishIfActive(token, trace, () -> callback.accept(result != null ? result : "Could not evaluate answer."));
+            } catch (Exception e) {
+                Log.e(TAG, "Error evaluating answer: " + e.getMessage(), e);
+                postIfActive(token, trace, () -> callback.accept("Error evaluating answer: " + e.getMessage()));
+            } finally {
+                // Not recorded as a turn, the next answer is graded on a fresh clone of the base session
+                gradingMode.close();
+            }
+        });
+    }
+
+    // Runs in the batch lane one section at a time, chat and quiz requests queued meanwhile go first
+    public void reformatLesson(String fileContent, LessonReformatter.ReformatListener listener) {
+        if (!isLlmReady) {
+            listener.onComplete(null);
+            return;
+        }
+        acquire(reformatSlot);
+        lessonReformatter.reformat(sessionOptions, fileContent, listener);
+    }
+
+
+    public void close() {
+        // Requests of this screen that haven't finished are of no use anymore
+        isClosed = true;
+        memoExecutor.shutdown();
+        llmEngine.getScheduler().cancelAll(this);
+        for (ModelSlot slot : slots.values()) {
+            slot.engine.removeResidencyListener(slot.residencyListener);
+        }
+        llmEngine.execute(() -> {
+            for (ModelSlot slot : slots.values()) {
+                slot.closeSessions();
+                // The engine is owned by LlmEngine and closed there once nobody uses it
+                slot.inference = null;
             }
 
             isLlmReady = false;
-            Log.d(TAG, "LLM closed.");
+            Log.d(TAG, "LLM session closed.");
         });
-        executorService.shutdown();
+        for (ModelSlot slot : slots.values()) {
+            release(slot);
+        }
     }
-}
\ No newline at end of file
+}
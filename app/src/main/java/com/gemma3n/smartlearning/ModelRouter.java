@@ -0,0 +1,101 @@
+package com.gemma3n.smartlearning;
+
+import java.io.File;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides which model runs each kind of request. Short, frequent tasks whose answers are a few
+ * dozen words go to the small model when it is installed, explanations and reformatting stay on
+ * the large one. Every task has a latency budget and a typical prompt and answer length: a task
+ * of the large tier whose typical request is expected to take longer than its budget on this
+ * device, at the speeds measured by BackendSelector, runs on the small model instead. Answers are
+ * never cut at the budget.
+ */
+public class ModelRouter {
+    public static final String SMALL_MODEL_PATH = "/data/local/tmp/llm/gemma3-1b-it-int4.task";
+
+    public enum TaskType {
+        CHAT,
+        QUESTION_GENERATION,
+        QUIZ_GRADING,
+        REFORMAT
+    }
+
+    public enum Tier {
+        SMALL,
+        LARGE
+    }
+
+    public static class Route {
+        public final TaskType taskType;
+        public final String modelPath;
+        // How long a generation of the task should take, time spent queued behind other requests doesn't
+        // count. 0 for no budget.
+        public final long latencyBudgetMillis;
+
+        Route(TaskType taskType, String modelPath, long latencyBudgetMillis) {
+            this.taskType = taskType;
+            this.modelPath = modelPath;
+            this.latencyBudgetMillis = latencyBudgetMillis;
+        }
+    }
+
+    private final String largeModelPath;
+    private final String smallModelPath;
+    private final EnumMap<TaskType, Tier> tiers = new EnumMap<>(TaskType.class);
+    private final EnumMap<TaskType, Long> latencyBudgets = new EnumMap<>(TaskType.class);
+    private final EnumMap<TaskType, int[]> typicalTokens = new EnumMap<>(TaskType.class);
+    // Prompt and generated tokens per second, keyed by model path
+    private final Map<String, double[]> measuredSpeeds = new HashMap<>();
+
+    public ModelRouter(String largeModelPath) {
+        this(largeModelPath, SMALL_MODEL_PATH);
+    }
+
+    public ModelRouter(String largeModelPath, String smallModelPath) {
+        this.largeModelPath = largeModelPath;
+        this.smallModelPath = smallModelPath;
+        // Retrieved passages and the question, an explanation of a few paragraphs
+        configure(TaskType.CHAT, Tier.LARGE, 60_000, 500, 150);
+        // Questions are generated in the background a batch at a time
+        configure(TaskType.QUESTION_GENERATION, Tier.SMALL, 30_000, 600, 400);
+        configure(TaskType.QUIZ_GRADING, Tier.SMALL, 10_000, 150, 100);
+        // Runs a section at a time in the batch lane, nobody waits on a single section
+        configure(TaskType.REFORMAT, Tier.LARGE, 0, 1000, 1000);
+    }
+
+    public void configure(TaskType taskType, Tier tier, long latencyBudgetMillis, int typicalPromptTokens, int typicalResponseTokens) {
+        tiers.put(taskType, tier);
+        latencyBudgets.put(taskType, latencyBudgetMillis);
+        typicalTokens.put(taskType, new int[]{typicalPromptTokens, typicalResponseTokens});
+    }
+
+    // Speeds of the model on this device, see BackendSelector. A model without measured speeds is assumed to
+    // make every budget.
+    public void setMeasuredSpeed(String modelPath, double prefillTokensPerSecond, double decodeTokensPerSecond) {
+        if (prefillTokensPerSecond > 0 && decodeTokensPerSecond > 0) {
+            measuredSpeeds.put(modelPath, new double[]{prefillTokensPerSecond, decodeTokensPerSecond});
+        }
+    }
+
+    // Tasks of the small tier run on the large model when the small one isn't installed, tasks of the large
+    // tier run on the small one when the large one is too slow for their budget
+    public Route route(TaskType taskType) {
+        boolean smallInstalled = new File(smallModelPath).isFile();
+        long budgetMillis = latencyBudgets.get(taskType);
+        boolean small = smallInstalled && (tiers.get(taskType) == Tier.SMALL ||
+                (budgetMillis > 0 && expectedMillis(taskType, largeModelPath) > budgetMillis));
+        String modelPath = small ? smallModelPath : largeModelPath;
+        return new Route(taskType, modelPath, budgetMillis);
+    }
+
+    // Time a typical request of the task takes on the model, 0 if the model's speed wasn't measured
+    public long expectedMillis(TaskType taskType, String modelPath) {
+        double[] speed = measuredSpeeds.get(modelPath);
+        if (speed == null) return 0;
+        int[] tokens = typicalTokens.get(taskType);
+        return (long) (1000 * (tokens[0] / speed[0] + tokens[1] / speed[1]));
+    }
+}
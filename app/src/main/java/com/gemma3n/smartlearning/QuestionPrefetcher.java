@@ -0,0 +1,93 @@
+package com.gemma3n.smartlearning;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * Keeps a few quiz questions for the current lesson ready ahead of time.
+ * Questions are generated in batches in the background lane while the student answers, so
+ * "Next Question" is usually served from the queue. Changing the lesson drops the queue and the
+ * batch in flight. Main thread only.
+ */
+public class QuestionPrefetcher {
+    private static final String TAG = "QuestionPrefetcher";
+    private static final int PREFETCH_COUNT = 3;
+
+    private final LlmHelper llmHelper;
+    private final ArrayDeque<QuizQuestion> questions = new ArrayDeque<>();
+    private InferenceScheduler.CancellationToken batchInFlight;
+    // Bumped on invalidate, questions of a batch for an older lesson are ignored
+    private int lessonGeneration = 0;
+    private Consumer<QuizQuestion> waitingCallback;
+
+    public QuestionPrefetcher(LlmHelper llmHelper) {
+        this.llmHelper = llmHelper;
+    }
+
+    // Hands out a ready question right away, or the next one that is parsed.
+    // The callback gets null when no question could be generated.
+    public void takeQuestion(Consumer<QuizQuestion> callback) {
+        QuizQuestion question = questions.poll();
+        if (question != null) {
+            Log.d(TAG, "Serving prefetched question, " + questions.size() + " left.");
+            callback.accept(question);
+        } else {
+            waitingCallback = callback;
+        }
+        fill();
+    }
+
+    public void invalidate() {
+        lessonGeneration++;
+        questions.clear();
+        if (batchInFlight != null) {
+            batchInFlight.cancel();
+            batchInFlight = null;
+        }
+        if (waitingCallback != null) {
+            waitingCallback.accept(null);
+            waitingCallback = null;
+        }
+    }
+
+    // Starts a batch that tops the queue up to PREFETCH_COUNT questions, one batch at a time
+    public void fill() {
+        int missing = PREFETCH_COUNT - questions.size();
+        if (batchInFlight != null || missing <= 0) {
+            return;
+        }
+        int generation = lessonGeneration;
+        batchInFlight = llmHelper.generateQuestionBatch(missing, InferenceScheduler.Priority.BACKGROUND, new LlmHelper.QuestionBatchListener() {
+            @Override
+            public void onQuestion(QuizQuestion question) {
+                if (generation != lessonGeneration) return;
+                onQuestionGenerated(question);
+            }
+
+            @Override
+            public void onComplete(int questionCount) {
+                if (generation != lessonGeneration) return;
+                batchInFlight = null;
+                if (questionCount == 0 && waitingCallback != null) {
+                    // Nothing usable came out of the batch, don't keep the student waiting
+                    waitingCallback.accept(null);
+                    waitingCallback = null;
+                } else if (waitingCallback != null) {
+                    fill();
+                }
+            }
+        });
+    }
+
+    private void onQuestionGenerated(QuizQuestion question) {
+        if (waitingCallback != null) {
+            Consumer<QuizQuestion> callback = waitingCallback;
+            waitingCallback = null;
+            callback.accept(question);
+        } else {
+            questions.add(question);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.gemma3n.smartlearning;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental parser for a JSON array of quiz questions, fed with the model output as it streams.
+ * Every complete {"question": ..., "answer": ...} object is returned as soon as its closing brace
+ * arrives. Anything outside the objects (code fences, commentary, a missing closing bracket) is
+ * ignored, and objects that don't parse or have no question are skipped.
+ */
+public class QuizBatchParser {
+    private static final String TAG = "QuizBatchParser";
+
+    private final StringBuilder currentObject = new StringBuilder();
+    private int depth = 0;
+    private boolean inString = false;
+    private boolean escaped = false;
+
+    // Returns the questions completed by this piece of output, usually none or one
+    public List<QuizQuestion> feed(String text) {
+        List<QuizQuestion> questions = new ArrayList<>();
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (depth == 0) {
+                // Between objects, wait for the next one to start
+                if (ch == '{') {
+                    depth = 1;
+                    currentObject.setLength(0);
+                    currentObject.append(ch);
+                }
+                continue;
+            }
+            currentObject.append(ch);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (ch == '\\') {
+                    escaped = true;
+                } else if (ch == '"') {
+                    inString = false;
+                }
+            } else if (ch == '"') {
+                inString = true;
+            } else if (ch == '{') {
+                depth++;
+            } else if (ch == '}') {
+                depth--;
+                if (depth == 0) {
+                    QuizQuestion question = parseObject(currentObject.toString());
+                    if (question != null) {
+                        questions.add(question);
+                    }
+                }
+            }
+        }
+        return questions;
+    }
+
+    private static QuizQuestion parseObject(String json) {
+        try {
+            JSONObject object = new JSONObject(json);
+            String question = object.optString("question", "").trim();
+            if (question.isEmpty()) {
+                return null;
+            }
+            return new QuizQuestion(question, object.optString("answer", "").trim());
+        } catch (JSONException e) {
+            Log.w(TAG, "Skipping malformed question: " + json);
+            return null;
+        }
+    }
+}
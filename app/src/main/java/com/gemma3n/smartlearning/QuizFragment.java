@@ -65,9 +65,8 @@ public class QuizFragment extends Fragment {
     private void setupObservers() {
         interactionViewModel.currentQuestion.observe(getViewLifecycleOwner(), question -> {
             if (question != null && !question.isEmpty()) {
-                // Clean and format the question for better readability
-                String cleanQuestion = cleanQuestionText(question);
-                questionTextView.setText(cleanQuestion);
+                // Parsed from structured output, no cleanup needed
+                questionTextView.setText(question);
                 questionAnswerLayout.setVisibility(View.VISIBLE);
                 answerEditText.setText(""); // Clear previous answer
                 feedbackLayout.setVisibility(View.GONE); // Hide old feedback
@@ -154,36 +153,11 @@ public class QuizFragment extends Fragment {
         });
     }
 
-    /**
-     * Clean and format question text for better readability
-     */
-    private String cleanQuestionText(String question) {
-        if (question == null) return "";
-        
-        // Remove common prefixes and explanatory text
-        String cleaned = question.replaceAll("(?i)^(here's a question|question:|based on the lesson|here's what|this question).*?:\\s*", "");
-        cleaned = cleaned.replaceAll("(?i)\\s*this question probes.*$", "");
-        cleaned = cleaned.replaceAll("(?i)\\s*this question tests.*$", "");
-        cleaned = cleaned.replaceAll("(?i)\\s*it aligns with.*$", "");
-        cleaned = cleaned.replaceAll("(?i)\\s*it focuses on.*$", "");
-        
-        // Remove extra whitespace and newlines
-        cleaned = cleaned.trim().replaceAll("\\n+", " ").replaceAll("\\s+", " ");
-        
-        // Ensure it ends with a question mark if it doesn't already
-        if (!cleaned.endsWith("?")) {
-            cleaned = cleaned.replaceAll("\\.$", "?");
-        }
-        
-        return cleaned;
-    }
-    
     private void updateUiBasedOnViewModelState() {
         // Handle current question display
         String currentQ = interactionViewModel.currentQuestion.getValue();
         if (currentQ != null && !currentQ.isEmpty()) {
-            String cleanQuestion = cleanQuestionText(currentQ);
-            questionTextView.setText(cleanQuestion);
+            questionTextView.setText(currentQ);
             questionAnswerLayout.setVisibility(View.VISIBLE);
             generateQuestionButton.setText("Next Question");
         } else {
@@ -0,0 +1,12 @@
+package com.gemma3n.smartlearning;
+
+// A quiz question parsed from the model's structured output, answer is the model's reference answer
+public class QuizQuestion {
+    public final String question;
+    public final String answer;
+
+    public QuizQuestion(String question, String answer) {
+        this.question = question;
+        this.answer = answer;
+    }
+}
@@ -18,11 +18,9 @@ import androidx.core.view.WindowCompat;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -210,37 +208,25 @@ public class ReceiveTranscriptActivity extends AppCompatActivity {
 
         showProgress("Saving content...");
 
-        // Save to app's internal storage
-        try {
-            File internalDir = getFilesDir();
-            File destinationDir = new File(internalDir, "imported_notes");
-            if (!destinationDir.exists()) {
-                destinationDir.mkdirs();
-            }
-
-            File file = new File(destinationDir, fileName);
-            try (FileOutputStream fos = new FileOutputStream(file);
-                 OutputStream os = fos) {
-                os.write(sharedContent.getBytes());
-            }
+        // Saved to the app's internal storage and indexed for search by the ingestion pipeline,
+        // which keeps going after this screen is closed
+        if (!IngestionPipeline.getInstance(this).importText(sharedContent, fileName)) {
+            showError("Too many imports in progress, please try again shortly");
+            return;
+        }
 
-            showSuccess("Content saved successfully!");
-            
-            // Navigate to file list after a short delay
-            new android.os.Handler().postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    Intent intent = new Intent(ReceiveTranscriptActivity.this, FileListActivity.class);
-                    intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-                    startActivity(intent);
-                    finish();
-                }
-            }, 1500);
+        showSuccess("Content saved successfully!");
 
-        } catch (IOException e) {
-            Log.e(TAG, "Error saving file", e);
-            showError("Error saving file: " + e.getMessage());
-        }
+        // Navigate to file list after a short delay
+        new android.os.Handler().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                Intent intent = new Intent(ReceiveTranscriptActivity.this, FileListActivity.class);
+                intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+                startActivity(intent);
+                finish();
+            }
+        }, 1500);
     }
 
     private void showProgress(String message) {
@@ -0,0 +1,35 @@
+package com.gemma3n.smartlearning;
+
+import android.content.Context;
+
+import java.io.File;
+
+/**
+ * Disk cache of reformatted lessons under filesDir/reformat_cache, one markdown file per entry.
+ * Entries are keyed by a hash of the lesson text, the model and the reformat prompt version, so a
+ * new model or prompt never serves stale output. The least recently used entries are evicted
+ * once the cache grows over its size limit, see DiskCache.
+ */
+public class ReformatCache {
+    private static final String CACHE_DIR = "reformat_cache";
+    private static final long MAX_CACHE_BYTES = 20L * 1024 * 1024;
+
+    private final DiskCache cache;
+
+    public ReformatCache(Context context) {
+        this.cache = new DiskCache(new File(context.getFilesDir(), CACHE_DIR), ".md", MAX_CACHE_BYTES);
+    }
+
+    public static String key(String lessonText, String modelVersion) {
+        return ContentHash.sha256(lessonText, modelVersion, String.valueOf(LessonReformatter.PROMPT_VERSION));
+    }
+
+    // Returns null on a miss
+    public String get(String key) {
+        return cache.get(key);
+    }
+
+    public void put(String key, String markdown) {
+        cache.put(key, markdown);
+    }
+}
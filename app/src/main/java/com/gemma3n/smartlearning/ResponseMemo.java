@@ -0,0 +1,47 @@
+package com.gemma3n.smartlearning;
+
+import android.content.Context;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Answers to earlier prompts, kept on disk under filesDir/response_memo.
+ * Sessions sample with temperature 0, so the same lesson, conversation, prompt, mode and model give
+ * the same answer and a repeated question can be served without running the model. Prompts are normalized
+ * first, so case, spacing and trailing punctuation don't cause misses. Bounded to MAX_CACHE_BYTES,
+ * least recently used first out, see DiskCache.
+ */
+public class ResponseMemo {
+    private static final String CACHE_DIR = "response_memo";
+    private static final long MAX_CACHE_BYTES = 5L * 1024 * 1024;
+
+    private final DiskCache cache;
+
+    public ResponseMemo(Context context) {
+        this.cache = new DiskCache(new File(context.getFilesDir(), CACHE_DIR), ".txt", MAX_CACHE_BYTES);
+    }
+
+    // modelVersion identifies the model file and anything else that changes answers, like the adapter.
+    // historyHash is the ConversationWindow history the prompt continues, empty for a prompt that doesn't
+    // depend on earlier turns: a follow-up like "explain more" means something else in every conversation.
+    public static String key(String lessonHash, String historyHash, String prompt, String mode, String modelVersion) {
+        return ContentHash.sha256(lessonHash, historyHash, normalize(prompt), mode, modelVersion);
+    }
+
+    static String normalize(String prompt) {
+        return prompt.toLowerCase(Locale.ROOT)
+                .replaceAll("\\s+", " ")
+                .replaceAll("[\\s?!.]+$", "")
+                .trim();
+    }
+
+    // Returns null on a miss
+    public String get(String key) {
+        return cache.get(key);
+    }
+
+    public void put(String key, String response) {
+        cache.put(key, response);
+    }
+}
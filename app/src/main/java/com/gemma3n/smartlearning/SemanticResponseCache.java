@@ -0,0 +1,166 @@
+package com.gemma3n.smartlearning;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chat answers of a lesson, found again by the meaning of the question rather than its exact text,
+ * so "what is osmosis" can be served the answer to "explain osmosis". Questions are compared by
+ * the cosine similarity of their Gecko query embeddings, and must have retrieved the same lesson
+ * chunks: questions of the same shape about different things ("what is osmosis", "what is
+ * diffusion") embed close together but are about different passages. Only meant for questions
+ * that don't continue a conversation, the caller checks that. Entries are kept per lesson in
+ * filesDir/semantic_cache/<lesson hash>.json, at most MAX_ENTRIES_PER_LESSON, oldest out first.
+ * Only the current lesson is held in memory, loading and saving it reads and writes its file.
+ */
+public class SemanticResponseCache {
+    private static final String TAG = "SemanticResponseCache";
+    private static final String CACHE_DIR = "semantic_cache";
+    private static final int MAX_ENTRIES_PER_LESSON = 100;
+    // Paraphrases of a question score well above this, related but different questions below it
+    public static final float DEFAULT_SIMILARITY_THRESHOLD = 0.92f;
+
+    private static class Entry {
+        final String question;
+        final String answer;
+        final String modelVersion;
+        // Row ids of the chunks retrieved for the question, see chunkKey
+        final String chunkKey;
+        final float[] embedding;
+
+        Entry(String question, String answer, String modelVersion, String chunkKey, float[] embedding) {
+            this.question = question;
+            this.answer = answer;
+            this.modelVersion = modelVersion;
+            this.chunkKey = chunkKey;
+            this.embedding = embedding;
+        }
+    }
+
+    private final File cacheDir;
+    private float similarityThreshold = DEFAULT_SIMILARITY_THRESHOLD;
+    private String loadedLessonHash;
+    private List<Entry> entries = new ArrayList<>();
+
+    public SemanticResponseCache(Context context) {
+        this.cacheDir = new File(context.getFilesDir(), CACHE_DIR);
+    }
+
+    public synchronized void setSimilarityThreshold(float similarityThreshold) {
+        this.similarityThreshold = similarityThreshold;
+    }
+
+    // Identifies the lesson chunks retrieved for a question, whatever their order
+    public static String chunkKey(List<LessonVectorStore.Match> chunks) {
+        List<Long> ids = new ArrayList<>();
+        for (LessonVectorStore.Match chunk : chunks) {
+            ids.add(chunk.id);
+        }
+        Collections.sort(ids);
+        StringBuilder key = new StringBuilder();
+        for (long id : ids) {
+            if (key.length() > 0) key.append(',');
+            key.append(id);
+        }
+        return key.toString();
+    }
+
+    // The answer to the most similar earlier question of the lesson that retrieved the same chunks, or null if
+    // none is similar enough
+    public synchronized String find(String lessonHash, String modelVersion, String chunkKey, List<Float> questionEmbedding) {
+        load(lessonHash);
+        float[] query = VectorMath.toArray(questionEmbedding);
+        Entry best = null;
+        float bestSimilarity = similarityThreshold;
+        for (Entry entry : entries) {
+            if (!entry.modelVersion.equals(modelVersion) || !entry.chunkKey.equals(chunkKey)) continue;
+            float similarity = VectorMath.cosineSimilarity(query, entry.embedding);
+            if (similarity >= bestSimilarity) {
+                best = entry;
+                bestSimilarity = similarity;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        Log.d(TAG, "Similar question found (" + bestSimilarity + "): " + best.question);
+        return best.answer;
+    }
+
+    public synchronized void add(String lessonHash, String modelVersion, String chunkKey, String question,
+                                 List<Float> questionEmbedding, String answer) {
+        load(lessonHash);
+        entries.add(new Entry(question, answer, modelVersion, chunkKey, VectorMath.toArray(questionEmbedding)));
+        while (entries.size() > MAX_ENTRIES_PER_LESSON) {
+            entries.remove(0);
+        }
+        save(lessonHash);
+    }
+
+    private void load(String lessonHash) {
+        if (lessonHash.equals(loadedLessonHash)) return;
+        loadedLessonHash = lessonHash;
+        entries = new ArrayList<>();
+        File file = lessonFile(lessonHash);
+        if (!file.exists()) return;
+        try {
+            JSONArray array = new JSONArray(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject object = array.getJSONObject(i);
+                JSONArray vector = object.getJSONArray("embedding");
+                float[] embedding = new float[vector.length()];
+                for (int j = 0; j < embedding.length; j++) {
+                    embedding[j] = (float) vector.getDouble(j);
+                }
+                // Entries written before chunk keys never match
+                entries.add(new Entry(object.getString("question"), object.getString("answer"),
+                        object.getString("model_version"), object.optString("chunk_key", "-"), embedding));
+            }
+            Log.d(TAG, "Loaded " + entries.size() + " answers for the lesson.");
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error reading cached answers, starting empty: " + e.getMessage(), e);
+            entries = new ArrayList<>();
+        }
+    }
+
+    private void save(String lessonHash) {
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            Log.e(TAG, "Failed to create cache directory: " + cacheDir.getAbsolutePath());
+            return;
+        }
+        try {
+            JSONArray array = new JSONArray();
+            for (Entry entry : entries) {
+                JSONArray vector = new JSONArray();
+                for (float value : entry.embedding) {
+                    vector.put((double) value);
+                }
+                array.put(new JSONObject()
+                        .put("question", entry.question)
+                        .put("answer", entry.answer)
+                        .put("model_version", entry.modelVersion)
+                        .put("chunk_key", entry.chunkKey)
+                        .put("embedding", vector));
+            }
+            AtomicFiles.write(lessonFile(lessonHash), array.toString());
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error writing cached answers: " + e.getMessage(), e);
+        }
+    }
+
+    private File lessonFile(String lessonHash) {
+        return new File(cacheDir, lessonHash + ".json");
+    }
+}
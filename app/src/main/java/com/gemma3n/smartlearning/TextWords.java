@@ -0,0 +1,16 @@
+package com.gemma3n.smartlearning;
+
+import java.util.Locale;
+
+// Text reduced to its words, shared by the adapter lookup and the pre-grader to compare text by wording only
+public final class TextWords {
+
+    private TextWords() {}
+
+    // Lower case words separated by single spaces, without punctuation and apostrophes,
+    // so "World_History-notes.txt" matches "world history" and "it's" matches "its"
+    public static String of(String text) {
+        if (text == null) return "";
+        return text.toLowerCase(Locale.ROOT).replace("'", "").replaceAll("[^\\p{L}\\p{N}]+", " ").trim();
+    }
+}
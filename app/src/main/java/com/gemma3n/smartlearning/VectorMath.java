@@ -0,0 +1,34 @@
+package com.gemma3n.smartlearning;
+
+import java.util.List;
+
+// Comparison of Gecko embeddings, shared by the vector store, the semantic cache and the pre-grader
+public final class VectorMath {
+
+    private VectorMath() {}
+
+    // Cosine of the angle between a and b, 0 if their sizes differ or one of them is zero
+    public static float cosineSimilarity(float[] a, float[] b) {
+        if (a.length != b.length) return 0;
+        double dot = 0, normA = 0, normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        if (normA == 0 || normB == 0) return 0;
+        return (float) (dot / Math.sqrt(normA * normB));
+    }
+
+    public static float cosineSimilarity(List<Float> a, List<Float> b) {
+        return cosineSimilarity(toArray(a), toArray(b));
+    }
+
+    public static float[] toArray(List<Float> values) {
+        float[] array = new float[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+}
@@ -30,6 +30,9 @@ public class WelcomeActivity extends AppCompatActivity {
         
         // Start the animation
         startLottieAnimation();
+
+        // Load the model in the background while the user finds a lesson
+        LlmEngine.getInstance(this, LlmEngine.DEFAULT_MODEL_PATH).prewarm();
     }
 
     private void setupClickListeners() {
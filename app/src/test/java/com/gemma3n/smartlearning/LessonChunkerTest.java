@@ -0,0 +1,152 @@
+package com.gemma3n.smartlearning;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+import static org.junit.Assert.*;
+
+public class LessonChunkerTest {
+    // A token per word keeps the expected chunk sizes easy to count
+    private static final ToIntFunction<String> WORDS = text -> {
+        String trimmed = text.trim();
+        return trimmed.isEmpty() ? 0 : trimmed.split("\\s+").length;
+    };
+    private static final int MAX_TOKENS = 20;
+    private static final int OVERLAP_TOKENS = 6;
+
+    private static final String LESSON = "# Cells\n" +
+            "\n" +
+            "A cell is the smallest unit of life. Every living thing is made of cells.\n" +
+            "Some organisms are a single cell, others are made of billions of them.\n" +
+            "\n" +
+            "The membrane surrounds the cell. It lets some substances in and keeps others out.\n" +
+            "Inside it is the cytoplasm, where most of the work of the cell is done.\n" +
+            "\n" +
+            "## Nucleus\n" +
+            "\n" +
+            "The nucleus holds the genetic material. It controls growth and reproduction.\n" +
+            "Cells without a nucleus are called prokaryotes.\n";
+
+    private final LessonChunker chunker = new LessonChunker(MAX_TOKENS, OVERLAP_TOKENS, WORDS);
+
+    @Test
+    public void chunkTextIsTheLessonBetweenItsOffsets() {
+        for (LessonChunker.Chunk chunk : chunker.chunk(LESSON)) {
+            assertEquals(LESSON.substring(chunk.start, chunk.end), chunk.text);
+        }
+    }
+
+    @Test
+    public void noChunkIsOverBudget() {
+        List<LessonChunker.Chunk> chunks = chunker.chunk(LESSON);
+        assertTrue(chunks.size() > 1);
+        for (LessonChunker.Chunk chunk : chunks) {
+            assertTrue(chunk.text, WORDS.applyAsInt(chunk.text) <= MAX_TOKENS);
+            assertEquals(WORDS.applyAsInt(chunk.text), chunk.tokens);
+        }
+    }
+
+    @Test
+    public void chunksCoverTheWholeLesson() {
+        assertCovers(LESSON, chunker.chunk(LESSON));
+    }
+
+    @Test
+    public void consecutiveChunksOfASectionOverlapBySentences() {
+        List<LessonChunker.Chunk> chunks = chunker.chunk(LESSON);
+        int overlaps = 0;
+        for (int i = 1; i < chunks.size(); i++) {
+            LessonChunker.Chunk previous = chunks.get(i - 1);
+            LessonChunker.Chunk next = chunks.get(i);
+            if (next.start >= previous.end) continue;
+            overlaps++;
+            String shared = LESSON.substring(next.start, previous.end);
+            assertTrue(shared, WORDS.applyAsInt(shared) <= OVERLAP_TOKENS);
+            // Whole sentences only
+            assertTrue(shared, shared.endsWith("."));
+            assertFalse(shared, shared.startsWith("#"));
+        }
+        assertTrue(overlaps > 0);
+    }
+
+    @Test
+    public void headingStartsAChunkWithoutOverlap() {
+        int heading = LESSON.indexOf("## Nucleus");
+        boolean found = false;
+        for (LessonChunker.Chunk chunk : chunker.chunk(LESSON)) {
+            if (chunk.start == heading) {
+                found = true;
+            }
+            if (chunk.start < heading) {
+                assertTrue(chunk.text, chunk.end <= heading);
+            }
+        }
+        assertTrue(found);
+    }
+
+    @Test
+    public void oversizedSentenceIsCutBetweenWords() {
+        StringBuilder sentence = new StringBuilder("This sentence");
+        for (int i = 0; i < 3 * MAX_TOKENS; i++) {
+            sentence.append(" goes on");
+        }
+        String lesson = "Short start. " + sentence + " until it ends.\n";
+        List<LessonChunker.Chunk> chunks = chunker.chunk(lesson);
+        assertTrue(chunks.size() >= 4);
+        for (LessonChunker.Chunk chunk : chunks) {
+            assertTrue(chunk.text, WORDS.applyAsInt(chunk.text) <= MAX_TOKENS);
+            assertEquals(lesson.substring(chunk.start, chunk.end), chunk.text);
+            // Words are never split
+            assertTrue(chunk.start == 0 || Character.isWhitespace(lesson.charAt(chunk.start - 1)));
+            assertTrue(chunk.end == lesson.length() || Character.isWhitespace(lesson.charAt(chunk.end)));
+        }
+        assertCovers(lesson, chunks);
+    }
+
+    @Test
+    public void lineLongerThanAReadIsStreamedWhole() {
+        StringBuilder lesson = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            lesson.append("Sentence number ").append(i).append(" has six words. ");
+        }
+        String text = lesson.toString();
+        List<LessonChunker.Chunk> streamed = new ArrayList<>();
+        Iterator<LessonChunker.Chunk> chunks = chunker.chunks(new BufferedReader(new StringReader(text)));
+        chunks.forEachRemaining(streamed::add);
+        for (LessonChunker.Chunk chunk : streamed) {
+            assertEquals(text.substring(chunk.start, chunk.end), chunk.text);
+            assertTrue(chunk.text, WORDS.applyAsInt(chunk.text) <= MAX_TOKENS);
+        }
+        assertCovers(text, streamed);
+    }
+
+    @Test
+    public void sectionsAreChunksWithoutOverlap() {
+        List<String> sections = LessonSectioner.split(LESSON, MAX_TOKENS, WORDS);
+        StringBuilder joined = new StringBuilder();
+        for (String section : sections) {
+            assertTrue(section, WORDS.applyAsInt(section) <= MAX_TOKENS);
+            joined.append(section).append(' ');
+        }
+        assertEquals(WORDS.applyAsInt(LESSON), WORDS.applyAsInt(joined.toString()));
+    }
+
+    // Only whitespace is left out between and around the chunks
+    private static void assertCovers(String lesson, List<LessonChunker.Chunk> chunks) {
+        int covered = 0;
+        for (LessonChunker.Chunk chunk : chunks) {
+            assertTrue(chunk.start >= 0 && chunk.end <= lesson.length());
+            if (chunk.start > covered) {
+                assertEquals("", lesson.substring(covered, chunk.start).trim());
+            }
+            covered = Math.max(covered, chunk.end);
+        }
+        assertEquals("", lesson.substring(covered).trim());
+    }
+}